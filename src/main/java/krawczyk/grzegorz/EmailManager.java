@@ -1,21 +1,28 @@
 package krawczyk.grzegorz;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
+import javafx.concurrent.WorkerStateEvent;
+import javafx.event.EventHandler;
 import javafx.scene.control.TreeItem;
+import krawczyk.grzegorz.controllers.persistence.CachedFolder;
+import krawczyk.grzegorz.controllers.persistence.SyncStateAccess;
 import krawczyk.grzegorz.controllers.services.FetchFolderService;
+import krawczyk.grzegorz.controllers.services.FlagUpdateQueue;
 import krawczyk.grzegorz.controllers.services.FolderUpdaterService;
+import krawczyk.grzegorz.controllers.services.MoveMessagesService;
 import krawczyk.grzegorz.models.EmailAccount;
 import krawczyk.grzegorz.models.EmailMessage;
 import krawczyk.grzegorz.models.EmailTreeItem;
+import krawczyk.grzegorz.models.MailboxStore;
 import krawczyk.grzegorz.views.IconResolver;
 
-import javax.mail.Flags;
 import javax.mail.Folder;
-import javax.mail.Message;
-import javax.mail.MessagingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class holds information about application state and data.
@@ -40,24 +47,29 @@ public class EmailManager {
     private EmailTreeItem<String> foldersRoot = new EmailTreeItem<>("");
 
     /**
-     * List of all folders in the application (object of class Folder - folders from server side)
+     * EmailTreeItems of all accounts (logged-in and loaded from local file) by email address.
      */
-    private List<Folder> folderList = new ArrayList<>();
+    private Map<String, EmailTreeItem<String>> accountTreeItems = new ConcurrentHashMap<>();
+    private SyncStateAccess syncStateAccess = new SyncStateAccess();
     private FolderUpdaterService folderUpdaterService;
 
+    /**
+     * Queue of changes of flags of messages (read / unread, deleted) which are sent to server in background.
+     */
+    private FlagUpdateQueue flagUpdateQueue = new FlagUpdateQueue();
+
     /**
      * Constructor of EmailManager class.
      * It initializes FolderUpdaterService service which will constantly check and update new and deleted emails on server.
      */
     public EmailManager() {
         // Create Service.
-        // FolderUpdaterService will work in background thread all the time.
-        this.folderUpdaterService = new FolderUpdaterService(this.folderList);
+        // FolderUpdaterService will work in background threads all the time.
+        this.folderUpdaterService = new FolderUpdaterService();
 
         // Start Service.
-        // start() method from Service class does background task
-        // (call and serach for new message added or message removed events on the connected servers every 5 seconds ) in separate thread.
-        // start() method creates new thread, executes code, returns values - it is simpler than creating threads manually.
+        // start() method starts background tasks (watch INBOX and selected folder in IDLE mode and check other folders
+        // for new message added or message removed events on the connected servers, every folder with its own interval).
         folderUpdaterService.start();
     }
 
@@ -83,17 +95,24 @@ public class EmailManager {
     public void addEmailAccount(EmailAccount emailAccount) {
         emailAccounts.add(emailAccount);
 
-        // EmailTree Element with Email Account is created.
-        EmailTreeItem<String> treeItem = new EmailTreeItem<>(emailAccount.getAddress());
+        // If the account was loaded from local file (see addCachedEmailAccount()), its EmailTreeItem is used
+        // and it is already displayed in Email Tree View.
+        EmailTreeItem<String> treeItem = accountTreeItems.get(emailAccount.getAddress());
+        boolean displayed = treeItem != null;
+        if (!displayed) {
+            // EmailTree Element with Email Account is created.
+            treeItem = new EmailTreeItem<>(emailAccount.getAddress());
 
-        // It adds icon to email address folder (main folder)
-        treeItem.setGraphic(iconResolver.getIconForFolder(emailAccount.getAddress()));
+            // It adds icon to email address folder (main folder)
+            treeItem.setGraphic(iconResolver.getIconForFolder(emailAccount.getAddress()));
+            accountTreeItems.put(emailAccount.getAddress(), treeItem);
+        }
 
         // Create Service.
         // Whole fetching folders is done in background thread.
         // treeItem (email account) is passed to fetchFolderService,
         // and then method in FetchFolderClass adds folders to that treeItem
-        FetchFolderService fetchFolderService = new FetchFolderService(emailAccount.getStore(), treeItem, this.folderList);
+        FetchFolderService fetchFolderService = new FetchFolderService(emailAccount, treeItem, this.folderUpdaterService);
 
         // Start Service.
         // start() method from Service class does background task (fetch folders) in separate thread.
@@ -101,24 +120,112 @@ public class EmailManager {
         fetchFolderService.start();
 
         // Email Addres EmailTreeItem is added to the foldersRoot - root of the TreeView.
-        // It already contains all children folders fetch by fetchFolderService.
-        foldersRoot.getChildren().add(treeItem);
+        // Children folders fetched by fetchFolderService are added to it in JavaFX thread.
+        if (!displayed) {
+            EmailTreeItem<String> newTreeItem = treeItem;
+            Platform.runLater(() -> foldersRoot.getChildren().add(newTreeItem));
+        }
+    }
+
+    /**
+     * Method adds email account loaded from local file (its folders and saved messages) to Email Tree View,
+     * before the application connects to the server.
+     * <hr></hr>
+     * Method is called in Launcher when LoadCachedAccountService ends. When the application is connected to the account,
+     * addEmailAccount() uses the same EmailTreeItem (so user doesn't see folders disappearing and appearing again).
+     *
+     * @param emailAddress - email address of the account
+     * @param treeItem     - EmailTreeItem of the account created by LoadCachedAccountService
+     */
+    public void addCachedEmailAccount(String emailAddress, EmailTreeItem<String> treeItem) {
+        if (!accountTreeItems.containsKey(emailAddress)) {
+            accountTreeItems.put(emailAddress, treeItem);
+            foldersRoot.getChildren().add(treeItem);
+        }
+    }
+
+    /**
+     * Method saves folders of all logged-in accounts (with numbers of their messages) to local file,
+     * so they can be displayed right after next start of the application (see LoadCachedAccountService).
+     * <hr></hr>
+     * Method is called in Launcher when the application is closed.
+     */
+    public void saveFolderTrees() {
+        for (EmailAccount emailAccount : emailAccounts) {
+            EmailTreeItem<String> treeItem = accountTreeItems.get(emailAccount.getAddress());
+            if (treeItem != null) {
+                syncStateAccess.saveFolderTree(emailAccount.getAddress(), toCachedFolders(treeItem));
+            }
+        }
+    }
+
+    /**
+     * Method creates list of CachedFolders (which can be saved in local file) from children of passed EmailTreeItem (recursively).
+     * Folders which are not connected to the server (they don't exist on the server anymore) are skipped.
+     * @param parent - EmailTreeItem of account or folder
+     * @return List<CachedFolder> - folders with their subfolders
+     */
+    private List<CachedFolder> toCachedFolders(EmailTreeItem<String> parent) {
+        List<CachedFolder> cachedFolders = new ArrayList<>();
+        for (TreeItem<String> child : parent.getChildren()) {
+            EmailTreeItem<String> emailTreeItem = (EmailTreeItem<String>) child;
+            if (emailTreeItem.getFolder() != null) {
+                CachedFolder cachedFolder = new CachedFolder(emailTreeItem.getName(), emailTreeItem.getFolder().getFullName(),
+                        emailTreeItem.getTotalMessagesCount(), emailTreeItem.getUnreadMessagesCount());
+                cachedFolder.getSubfolders().addAll(toCachedFolders(emailTreeItem));
+                cachedFolders.add(cachedFolder);
+            }
+        }
+        return cachedFolders;
     }
 
     /**
-     * Method deletes selected message:
+     * Method deletes passed messages (selected in Email Table View):
      * <ol>
-     *     <li>sets this message as deleted on a server</li>
-     *     <li>deletes selected message from selected folder in Email Tree View</li>
+     *     <li>deletes messages from selected folder in Email Tree View (all at once)</li>
+     *     <li>sets these messages as deleted on a server (in background - see FlagUpdateQueue)</li>
      * </ol>
+     * @param emailMessages - messages from selected folder
      */
-    public void deleteSelectedMessage() {
-        try {
-            selectedMessage.getMessage().setFlag(Flags.Flag.DELETED, true);
-            selecedFolder.getEmailMessages().remove(selectedMessage);
-        } catch (MessagingException e) {
-            e.printStackTrace();
+    public void deleteMessages(List<EmailMessage> emailMessages) {
+        flagUpdateQueue.delete(selecedFolder, emailMessages);
+    }
+
+    /**
+     * Method moves passed messages (selected in Email Table View) from selected folder to other folder of the same account.
+     * Messages are removed from selected folder in Email Tree View right away, and moved on the server in background.
+     * @param emailMessages - messages from selected folder
+     * @param targetFolder  - folder on the server to which messages are moved
+     * @return MoveMessagesService - started service which moves messages (its progress can be displayed)
+     */
+    public MoveMessagesService moveMessages(List<EmailMessage> emailMessages, Folder targetFolder) {
+        MoveMessagesService moveMessagesService = new MoveMessagesService(selecedFolder, emailMessages, targetFolder);
+
+        // Target folder is checked right away, so its number of messages is updated - also when moving failed,
+        // because part of messages could be moved already.
+        EventHandler<WorkerStateEvent> targetFolderChecker = event -> folderUpdaterService.checkFolderNow(targetFolder);
+        moveMessagesService.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, targetFolderChecker);
+        moveMessagesService.addEventHandler(WorkerStateEvent.WORKER_STATE_FAILED, targetFolderChecker);
+        moveMessagesService.start();
+        return moveMessagesService;
+    }
+
+    /**
+     * Method returns folders (on the server side) to which messages from selected folder can be moved -
+     * all other folders of the same account.
+     * @return List<Folder> - folders of account of selected folder
+     */
+    public List<Folder> getTargetFolders() {
+        List<Folder> targetFolders = new ArrayList<>();
+        Folder selectedFolder = selecedFolder == null ? null : selecedFolder.getFolder();
+        if (selectedFolder != null) {
+            for (Folder folder : MailboxStore.getFolders()) {
+                if (folder.getStore() == selectedFolder.getStore() && !folder.getFullName().equals(selectedFolder.getFullName())) {
+                    targetFolders.add(folder);
+                }
+            }
         }
+        return targetFolders;
     }
 
     /**
@@ -134,10 +241,12 @@ public class EmailManager {
     /**
      * Method returns list of all folders (object of class Folder - folders from server side) in the application.
      *
+     * List is immutable snapshot (see MailboxStore), so it can be iterated while new folders are fetched.
+     *
      * @return List<Folder> - list of all folders in the logged in email accounts.
      */
     public List<Folder> getFolderList() {
-        return this.folderList;
+        return MailboxStore.getFolders();
     }
 
     public EmailMessage getSelectedMessage() {
@@ -152,44 +261,59 @@ public class EmailManager {
         return selecedFolder;
     }
 
+    /**
+     * Method sets folder selected by user in Email Tree View.
+     * Selected folder is watched by folderUpdaterService (in IDLE mode if server supports it).
+     * @param selecedFolder - EmailTreeItem selected in Email Tree View
+     */
     public void setSelecedFolder(EmailTreeItem<String> selecedFolder) {
         this.selecedFolder = selecedFolder;
+        if (selecedFolder.getFolder() != null) {
+            folderUpdaterService.setSelectedFolder(selecedFolder.getFolder());
+        }
     }
 
     /**
      * Method sets the message read:
      * <ol>
      *     <li>sets this message wasRead property to true</li>
-     *     <li>sets this message as seen on a server</li>
      *     <li>decreases number of unread messages in email tree view</li>
+     *     <li>sets this message as seen on a server (in background - see FlagUpdateQueue)</li>
      * </ol>
      */
     public void setWasRead() {
-        try {
-            selectedMessage.setWasRead(true);
-            selectedMessage.getMessage().setFlag(Flags.Flag.SEEN, true);
-            selecedFolder.decrementMessageCount();
-        } catch (MessagingException e) {
-            e.printStackTrace();
-        }
+        flagUpdateQueue.setWasRead(selecedFolder, selectedMessage, true);
     }
 
     /**
-     * Method sets the message as not read:
+     * Method sets passed messages (selected in Email Table View) read or not read:
      * <ol>
-     *     <li>sets this message wasRead property to false</li>
-     *     <li>sets this message as unseen on a server</li>
-     *     <li>increases number of unread messages in email tree view</li>
+     *     <li>sets wasRead property of these messages</li>
+     *     <li>changes number of unread messages in email tree view</li>
+     *     <li>sets these messages as seen or unseen on a server (in background - see FlagUpdateQueue)</li>
      * </ol>
+     * @param emailMessages - messages from selected folder
+     * @param wasRead       - true to set messages read, false to set them not read
      */
-    public void setWasNotRead() {
-        try {
-            selectedMessage.setWasRead(false);
-            selectedMessage.getMessage().setFlag(Flags.Flag.SEEN, false);
-            selecedFolder.incrementMessageCount();
-        } catch (MessagingException e) {
-            e.printStackTrace();
-        }
+    public void setWasRead(List<EmailMessage> emailMessages, boolean wasRead) {
+        flagUpdateQueue.setWasRead(selecedFolder, emailMessages, wasRead);
+    }
+
+    /**
+     * Method sends all changes of flags of messages which weren't sent to server yet.
+     * It is called in Launcher when the application is closed.
+     */
+    public void sendFlagUpdates() {
+        flagUpdateQueue.shutdown();
+    }
+
+    /**
+     * Method pauses or resumes checking folders for new and deleted messages.
+     * It is called by ViewFactory when main window is minimized or restored.
+     * @param paused - true to pause checking, false to resume it
+     */
+    public void setUpdatesPaused(boolean paused) {
+        folderUpdaterService.setPaused(paused);
     }
 
     /**
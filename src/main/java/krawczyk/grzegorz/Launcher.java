@@ -8,12 +8,16 @@ import javafx.scene.control.Button;
 import javafx.stage.Stage;
 import krawczyk.grzegorz.controllers.persistence.PersistenceAccess;
 import krawczyk.grzegorz.controllers.persistence.ValidAccount;
+import krawczyk.grzegorz.controllers.services.FetchMessagesService;
+import krawczyk.grzegorz.controllers.services.LoadCachedAccountService;
 import krawczyk.grzegorz.controllers.services.LoginService;
+import krawczyk.grzegorz.controllers.services.MessageMemoryManager;
 import krawczyk.grzegorz.models.EmailAccount;
 import krawczyk.grzegorz.views.ViewFactory;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 public class Launcher extends Application {
 
@@ -34,13 +38,27 @@ public class Launcher extends Application {
     */
     @Override
     public void start(Stage stage) throws Exception {
+        // Contents of messages read from server are released when they are not needed anymore (see MessageMemoryManager).
+        // It has to be done before any message is read from server.
+        MessageMemoryManager.install();
         ViewFactory viewFactory = new ViewFactory(emailManager);
         List<ValidAccount> validAccountsList = this.persistenceAccess.loadFromPersistence();
         if (validAccountsList.size() > 0) {
             viewFactory.showMainWindow();
             for (ValidAccount validAccount: validAccountsList) {
                 EmailAccount emailAccount = new EmailAccount(validAccount.getEmailAddress(), validAccount.getPassword());
-                LoginService loginService = new LoginService(emailAccount, this.emailManager);
+                CompletableFuture<Void> cachedAccountLoaded = new CompletableFuture<>();
+                LoginService loginService = new LoginService(emailAccount, this.emailManager, cachedAccountLoaded);
+
+                // Folders and INBOX messages saved in local files are displayed without waiting for the server.
+                // At the same time the application logs in, and then synchronizes them with the server in background.
+                LoadCachedAccountService loadCachedAccountService = new LoadCachedAccountService(emailAccount.getAddress());
+                loadCachedAccountService.setOnSucceeded(event -> {
+                    this.emailManager.addCachedEmailAccount(emailAccount.getAddress(), loadCachedAccountService.getValue());
+                    cachedAccountLoaded.complete(null);
+                });
+                loadCachedAccountService.setOnFailed(event -> cachedAccountLoaded.complete(null));
+                loadCachedAccountService.start();
                 loginService.start();
             }
         } else {
@@ -50,6 +68,8 @@ public class Launcher extends Application {
 
     /* Method stop() is called when application (window) is closed.
     It is used to save email accounts to which user logged in in the application to the local file for persistance.
+    Folders of these accounts are saved too (with headers of fetched messages which weren't saved yet), so they are displayed right after next start.
+    Changes of flags of messages which weren't sent to server yet are sent.
      */
     @Override
     public void stop() throws Exception {
@@ -58,5 +78,8 @@ public class Launcher extends Application {
             validAccountsList.add(new ValidAccount(emailAccount.getAddress(), emailAccount.getPassword()));
         }
         this.persistenceAccess.saveToPersistence(validAccountsList);
+        this.emailManager.saveFolderTrees();
+        FetchMessagesService.saveSyncStates();
+        this.emailManager.sendFlagUpdates();
     }
 }
@@ -6,19 +6,33 @@ import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
 import javafx.scene.layout.HBox;
 import javafx.scene.web.WebView;
 import krawczyk.grzegorz.EmailManager;
+import krawczyk.grzegorz.controllers.persistence.MessageCache;
+import krawczyk.grzegorz.controllers.services.ConnectionPool;
+import krawczyk.grzegorz.controllers.services.FetchMessagesService;
+import krawczyk.grzegorz.controllers.services.MessageMemoryManager;
 import krawczyk.grzegorz.controllers.services.MessageRendererService;
+import krawczyk.grzegorz.models.EmailAttachment;
 import krawczyk.grzegorz.models.EmailMessage;
 import krawczyk.grzegorz.views.ViewFactory;
 
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessageRemovedException;
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
+import javax.mail.Multipart;
+import javax.mail.Part;
 import java.awt.Desktop;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ResourceBundle;
 
 /**
@@ -43,6 +57,9 @@ public class EmailDetailsController extends BaseController implements Initializa
     @FXML
     private WebView webView;
 
+    @FXML
+    private ListView<String> textListView;
+
     /**
      * EmailDetailsController constructor.
      * <hr></hr>
@@ -65,13 +82,14 @@ public class EmailDetailsController extends BaseController implements Initializa
         this.subjectLabel.setText(emailMessage.getSubject());
         this.senderLabel.setText(emailMessage.getSender());
 
+        // Attachments are known from structure of the message - they are displayed before content of the message is loaded.
         loadAttachments(emailMessage);
 
         // It creates new MessageRendererService class object.
         // It passes webEngine of Email Web View to the created object.
         // This way messageRendererService contains WebEngine object of Email Web View window and uses it to display messages.
         // So displaying messages is controlled in MessageRendererService.
-        MessageRendererService messageRendererService = new MessageRendererService(this.webView.getEngine());
+        MessageRendererService messageRendererService = new MessageRendererService(this.webView, this.textListView);
 
         // It sets selected EmailMessage object in messageRendererService and restarts it.
         // So this way every time user opens EmailDetailsWindow it starts new background thread which renders email message (content of the message).
@@ -88,14 +106,9 @@ public class EmailDetailsController extends BaseController implements Initializa
      */
     private void loadAttachments(EmailMessage emailMessage) {
         if (emailMessage.getHasAttachments()) {
-            for (MimeBodyPart mimeBodyPart: emailMessage.getAttachmentsList()) {
-
-                try {
-                    Button button = new AttachmentButton(mimeBodyPart);
-                    this.hBoxDownloads.getChildren().add(button);
-                } catch (MessagingException e) {
-                    throw new RuntimeException(e);
-                }
+            for (EmailAttachment emailAttachment: emailMessage.getAttachmentsList()) {
+                Button button = new AttachmentButton(emailMessage, emailAttachment);
+                this.hBoxDownloads.getChildren().add(button);
             }
         } else {
             // if there are no attachments, attachmentLabel has no text (instead of hiding it - it isn't possible)
@@ -105,17 +118,22 @@ public class EmailDetailsController extends BaseController implements Initializa
 
     /**
      * Class represents button which contains attachment file and is used to download and open attachment.
+     * <hr></hr>
+     * Attachment is downloaded from server only once - it is saved in local cache of the account (see MessageCache)
+     * and next time it is copied to downloads directory from there.
      */
     private class AttachmentButton extends Button {
 
-        private MimeBodyPart mimeBodyPart;
+        private EmailMessage emailMessage;
+        private EmailAttachment emailAttachment;
         // path to downloaded file (to open it)
         private String downloadedFilePath;
 
-        public AttachmentButton(MimeBodyPart mimeBodyPart) throws MessagingException {
-            this.mimeBodyPart = mimeBodyPart;
-            this.setText(mimeBodyPart.getFileName());
-            this.downloadedFilePath = LOCATION_OF_DOWNLOADS + mimeBodyPart.getFileName();
+        public AttachmentButton(EmailMessage emailMessage, EmailAttachment emailAttachment) {
+            this.emailMessage = emailMessage;
+            this.emailAttachment = emailAttachment;
+            this.setText(emailAttachment.getFileName());
+            this.downloadedFilePath = LOCATION_OF_DOWNLOADS + emailAttachment.getFileName();
 
             // it adds event listener which is triggered by click on the button
             this.setOnAction(event -> downloadAttachment());
@@ -133,8 +151,9 @@ public class EmailDetailsController extends BaseController implements Initializa
                     return new Task() {
                         @Override
                         protected Object call() throws Exception {
-                            // it downloads attachment (mimeBodyPart) to passed directory
-                            mimeBodyPart.saveFile(downloadedFilePath);
+                            // it copies attachment from the cache (downloaded from server, if it isn't in the cache yet) to passed directory
+                            File cachedFile = getCachedAttachment();
+                            Files.copy(cachedFile.toPath(), Paths.get(downloadedFilePath), StandardCopyOption.REPLACE_EXISTING);
                             return null;
                         }
                     };
@@ -143,6 +162,16 @@ public class EmailDetailsController extends BaseController implements Initializa
 
             service.start();
 
+            // setOnFailed() event listener is triggered only if task state is FAILED - button is red, and if the message
+            // was removed from the server (e.g. on other device), it is written on the button.
+            service.setOnFailed(e -> {
+                service.getException().printStackTrace();
+                colorButtonRed();
+                if (service.getException() instanceof MessageRemovedException) {
+                    this.setText(emailAttachment.getFileName() + " (message doesn't exist anymore)");
+                }
+            });
+
             // Service ended task.
             // setOnSucceeded() event listener is triggered only if task state is SUCCEEDED
             // (it works only in case of success of background task in Service was ended, and it was success).
@@ -171,6 +200,72 @@ public class EmailDetailsController extends BaseController implements Initializa
             });
         }
 
+        /**
+         * Method returns file with the attachment from local cache. If it isn't there, it downloads it from server to the cache first.
+         * @return File - file with content of the attachment in the cache
+         * @throws Exception
+         */
+        private File getCachedAttachment() throws Exception {
+            Folder folder = emailMessage.getFolder();
+            if (folder == null) {
+                // Message loaded from local file before the application connected to the server (see LoadCachedAccountService).
+                throw new MessagingException("Message isn't connected to the server yet: " + emailAttachment.getFileName());
+            }
+            MessageCache messageCache = MessageCache.getMessageCache(folder);
+
+            if (emailAttachment.getContentHash() != null) {
+                File cachedFile = messageCache.getAttachment(emailAttachment.getContentHash());
+                if (cachedFile != null) {
+                    return cachedFile;
+                }
+            }
+
+            // Attachment is downloaded with connection borrowed from pool of the account.
+            ConnectionPool connectionPool = ConnectionPool.getConnectionPool(folder);
+            String contentHash = connectionPool.withFolder(folder, () -> {
+                Message message = emailMessage.getMessage();
+                Part part = findPart(message, emailAttachment.getPartId());
+                if (part == null) {
+                    throw new MessagingException("Attachment not found in the message: " + emailAttachment.getFileName());
+                }
+                try (InputStream inputStream = part.getInputStream()) {
+                    return messageCache.saveAttachment(inputStream);
+                } finally {
+                    MessageMemoryManager.touch(message, emailMessage.getSize().getSize());
+                }
+            });
+
+            // Hash is saved with headers of the message (see MessageHeader) - saving of headers of the folder is scheduled right away,
+            // so next time (also after restart of the application) attachment is taken from the cache.
+            emailAttachment.setContentHash(contentHash);
+            FetchMessagesService.scheduleSyncStateSave(folder);
+            return messageCache.getAttachment(contentHash);
+        }
+
+        /**
+         * Method finds part of the message with passed number (e.g. "1.3" is third part of the first part of the message).
+         * Only structure of the message is used to find the part - content is downloaded when stream of the part is read.
+         * @param message - email message (object representing email message on a server)
+         * @param partId  - number of the part (see EmailAttachment.getPartId())
+         * @return Part - part with the attachment, or null if message has no such part
+         * @throws Exception
+         */
+        private Part findPart(Message message, String partId) throws Exception {
+            Part part = message;
+            for (String number : partId.split("\\.")) {
+                if (!part.isMimeType("multipart/*")) {
+                    return null;
+                }
+                Multipart multipart = (Multipart) part.getContent();
+                int index = Integer.parseInt(number) - 1;
+                if (index >= multipart.getCount()) {
+                    return null;
+                }
+                part = multipart.getBodyPart(index);
+            }
+            return part;
+        }
+
         private void colorButtonBlue() {
             this.setStyle("-fx-background-color: Blue");
         }
@@ -178,6 +273,10 @@ public class EmailDetailsController extends BaseController implements Initializa
         private void colorButtonGreen() {
             this.setStyle("-fx-background-color: Green");
         }
+
+        private void colorButtonRed() {
+            this.setStyle("-fx-background-color: Red");
+        }
     }
 }
 
@@ -1,20 +1,31 @@
 package krawczyk.grzegorz.controllers;
 
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.transformation.SortedList;
 import javafx.fxml.FXML;
+import javafx.geometry.Orientation;
 import javafx.fxml.Initializable;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.web.WebView;
 import javafx.util.Callback;
 import krawczyk.grzegorz.EmailManager;
+import krawczyk.grzegorz.controllers.services.MessagePrefetcher;
+import krawczyk.grzegorz.controllers.services.MoveMessagesService;
 import krawczyk.grzegorz.controllers.services.MessageRendererService;
 import krawczyk.grzegorz.models.EmailMessage;
 import krawczyk.grzegorz.models.EmailTreeItem;
 import krawczyk.grzegorz.models.SizeInteger;
 import krawczyk.grzegorz.views.ViewFactory;
 
+import javax.mail.Folder;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 
 /**
@@ -22,22 +33,34 @@ import java.util.ResourceBundle;
  */
 public class MainWindowController extends BaseController implements Initializable {
 
-    // Options under right-click to mark selected message as unread and to delete selected message.
+    // Options under right-click to mark selected messages as read or unread, to delete them and to move them to other folder.
     // They have to be added to Email Table View (they are to be used there) - in setUpEmailsTableView() method.
     // Actions under these options are initialized in initialize() method.
+    private MenuItem markMessageReadMenuItem = new MenuItem("Mark as read");
     private MenuItem markMessageUnreadMenuItem = new MenuItem("Mark as unread");
-    private MenuItem deleteMessageMenuItem = new MenuItem("Delete the message");
+    private MenuItem deleteMessageMenuItem = new MenuItem("Delete");
+    private MenuItem moveMessageMenuItem = new MenuItem("Move to folder...");
     private MenuItem showMessageDetailsMenuItem = new MenuItem("View details");
+    private MenuItem allowRemoteContentMenuItem = new MenuItem("Always show remote content from this sender");
 
     @FXML
     private WebView emailWebView;
 
+    @FXML
+    private ListView<String> emailTextListView;
+
     @FXML
     private TableView<EmailMessage> emailsTableView;
 
     @FXML
     private TreeView<String> emailsTreeView;
 
+    @FXML
+    private ProgressBar operationProgressBar;
+
+    @FXML
+    private TableColumn<EmailMessage, String> attachmentCol;
+
     @FXML
     private TableColumn<EmailMessage, String> senderCol;
 
@@ -54,6 +77,14 @@ public class MainWindowController extends BaseController implements Initializabl
     private TableColumn<EmailMessage, Date> dateCol;
 
     private MessageRendererService messageRendererService;
+    private MessagePrefetcher messagePrefetcher = new MessagePrefetcher();
+
+    /**
+     * Messages of selected folder displayed in Email Table View, sorted by column selected by user.
+     * List of messages in EmailTreeItem is always sorted by UIDs (it is used to find rows by UIDs), so it is never sorted itself -
+     * Email Table View displays sorted view of it.
+     */
+    private SortedList<EmailMessage> sortedEmailMessages;
 
     /**
      * MainWindowController constructor.
@@ -101,6 +132,7 @@ public class MainWindowController extends BaseController implements Initializabl
         this.setUpEmailsTreeView();
         this.setUpEmailsTableView();
         this.setUpFolderSelection();
+        this.setUpPaging();
         this.setUpBoldRows();
         this.setUpMessageRendererService();
         this.setUpMessageSelection();
@@ -128,19 +160,26 @@ public class MainWindowController extends BaseController implements Initializabl
      * Method sets (initializes) columns of Emails Table View when displaying the window.
      */
     private void setUpEmailsTableView() {
+        // Attachments are known from structure of the message fetched with headers - column shows paperclip for messages with attachments.
+        attachmentCol.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getHasAttachments() ? "\uD83D\uDCCE" : ""));
         senderCol.setCellValueFactory(new PropertyValueFactory<EmailMessage, String>("sender"));
         subjectCol.setCellValueFactory(new PropertyValueFactory<EmailMessage, String>("subject"));
         recipientCal.setCellValueFactory(new PropertyValueFactory<EmailMessage, String>("recipient"));
         sizeCal.setCellValueFactory(new PropertyValueFactory<EmailMessage, SizeInteger>("size"));
         dateCol.setCellValueFactory(new PropertyValueFactory<EmailMessage, Date>("date"));
 
+        // many messages can be selected (with Ctrl or Shift) - options of context menu are applied to all of them
+        emailsTableView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+
         // it adds context menu items under right click (properties created on top) to Email Table View:
-        emailsTableView.setContextMenu(new ContextMenu(markMessageUnreadMenuItem, deleteMessageMenuItem, showMessageDetailsMenuItem));
+        emailsTableView.setContextMenu(new ContextMenu(markMessageReadMenuItem, markMessageUnreadMenuItem,
+                deleteMessageMenuItem, moveMessageMenuItem, showMessageDetailsMenuItem, allowRemoteContentMenuItem));
     }
 
     /**
      * Method initializes event listener listening for mouse click on any element of Email Tree View.
      * When user clicks Email Tree View item populates Emails Table View with email messages from selected folder.
+     * If the folder is selected for the first time, it is opened and first page of its messages is fetched.
      */
     private void setUpFolderSelection() {
         emailsTreeView.setOnMouseClicked(event -> {
@@ -148,7 +187,51 @@ public class MainWindowController extends BaseController implements Initializabl
 
             if (item != null) {
                 this.emailManager.setSelecedFolder(item);
-                emailsTableView.setItems(item.getEmailMessages());
+                emailsTableView.setItems(createSortedEmailMessages(item));
+                item.loadFirstPage();
+            }
+        });
+    }
+
+    /**
+     * Method creates sorted view of messages of the folder, which is displayed in Email Table View.
+     * <hr></hr>
+     * Comparator of the view is bound to comparator of Email Table View (columns selected by user to sort by).
+     * When items of Email Table View are SortedList with bound comparator, Email Table View doesn't sort them itself.
+     * Without sorting by any column, messages are displayed in order of the folder (from the newest).
+     * @param item - folder selected in Email Tree View
+     * @return SortedList<EmailMessage> - sorted view of messages of the folder
+     */
+    private SortedList<EmailMessage> createSortedEmailMessages(EmailTreeItem<String> item) {
+        // View of previously selected folder isn't used anymore - its comparator is unbound, so it can be removed from memory.
+        if (sortedEmailMessages != null) {
+            sortedEmailMessages.comparatorProperty().unbind();
+        }
+        sortedEmailMessages = new SortedList<>(item.getEmailMessages());
+        sortedEmailMessages.comparatorProperty().bind(emailsTableView.comparatorProperty());
+        return sortedEmailMessages;
+    }
+
+    /**
+     * Method initializes loading of next pages of messages when Emails Table View is scrolled to the end.
+     * <hr></hr>
+     * Folders contain only the newest messages at first (one page).
+     * When user scrolls near the end of the list, next page of older messages is loaded to the selected folder.
+     */
+    private void setUpPaging() {
+        // Scroll bar of the table is created together with skin of the table (when table is displayed for the first time).
+        emailsTableView.skinProperty().addListener((observable, oldSkin, newSkin) -> {
+            for (Node node : emailsTableView.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar scrollBar && scrollBar.getOrientation() == Orientation.VERTICAL) {
+                    scrollBar.valueProperty().addListener((observableValue, oldValue, newValue) -> {
+                        EmailTreeItem<String> selectedFolder = this.emailManager.getSelecedFolder();
+
+                        // 90% of the list is scrolled
+                        if (selectedFolder != null && newValue.doubleValue() >= scrollBar.getMax() * 0.9) {
+                            selectedFolder.loadNextPage();
+                        }
+                    });
+                }
             }
         });
     }
@@ -188,26 +271,29 @@ public class MainWindowController extends BaseController implements Initializabl
      * So displaying messages is controlled in MessageRendererService.
      */
     private void setUpMessageRendererService() {
-        this.messageRendererService = new MessageRendererService(this.emailWebView.getEngine());
+        this.messageRendererService = new MessageRendererService(this.emailWebView, this.emailTextListView);
     }
 
     /**
-     * Method initializes event listener listening for mouse click on any Email Table View row.
+     * Method initializes event listener listening for selection of any Email Table View row (by mouse click or by arrow keys).
      * Email Table View contains EmialMessage object (every row is 1 object).
-     * When user clicks Email Table View item:
+     * When user selects Email Table View item:
      * <ol>
      *     <li>
      *         It sets selected EmailMessage object in messageRendererService and restarts it.
-     *         So this way every time user clicks Email Table View it starts new background thread which renders email message (content of the message).
+     *         So this way every time user selects Email Table View row it starts new background thread which renders email message (content of the message).
      *         Every rendering is new thread.</li>
      *     <li>
      *         It sets this message read.
      *     </li>
+     *     <li>
+     *         It starts prefetching of messages next to selected message (see MessagePrefetcher),
+     *         so going to next or previous message displays it right away.
+     *     </li>
      * </ol>
      */
     private void setUpMessageSelection() {
-        emailsTableView.setOnMouseClicked(mouseEvent -> {
-            EmailMessage emailMessage = emailsTableView.getSelectionModel().getSelectedItem();
+        emailsTableView.getSelectionModel().selectedItemProperty().addListener((observable, oldEmailMessage, emailMessage) -> {
             if (emailMessage != null) {
                 this.emailManager.setSelectedMessage(emailMessage);
                 if (!emailMessage.getWasRead()) {
@@ -215,28 +301,76 @@ public class MainWindowController extends BaseController implements Initializabl
                 }
                 messageRendererService.setEmailMessage(emailMessage);
                 messageRendererService.restart();
+                messagePrefetcher.prefetchAround(emailsTableView.getItems(), emailsTableView.getSelectionModel().getSelectedIndex());
             }
         });
     }
 
+    /**
+     * Method returns messages selected in Email Table View (copy of the selection - it changes when rows are removed).
+     * @return List<EmailMessage> - selected messages
+     */
+    private List<EmailMessage> getSelectedMessages() {
+        return new ArrayList<>(emailsTableView.getSelectionModel().getSelectedItems());
+    }
+
     /**
      * Method initializes events triggered by options selected in context menu (under right click).
      * Options for context menus are added as properties on top of the class
      * and then initialized in EmailTableView in setUpEmailsTableView()
      */
     private void setUpContextMenus() {
+        markMessageReadMenuItem.setOnAction(event -> {
+            // rows are refreshed (bold or not) when MailboxStore applies the change
+            this.emailManager.setWasRead(getSelectedMessages(), true);
+        });
+
         markMessageUnreadMenuItem.setOnAction(event -> {
-            this.emailManager.setWasNotRead();
+            this.emailManager.setWasRead(getSelectedMessages(), false);
         });
 
         deleteMessageMenuItem.setOnAction(event -> {
-            this.emailManager.deleteSelectedMessage();
-            // it clears Email Web View:
-            this.emailWebView.getEngine().loadContent("");
+            this.emailManager.deleteMessages(getSelectedMessages());
+            // it clears displayed message:
+            this.messageRendererService.clearMessage();
+        });
+
+        moveMessageMenuItem.setOnAction(event -> {
+            List<EmailMessage> emailMessages = getSelectedMessages();
+            List<Folder> targetFolders = this.emailManager.getTargetFolders();
+            if (emailMessages.isEmpty() || targetFolders.isEmpty()) {
+                return;
+            }
+
+            // user selects target folder by its full name
+            Map<String, Folder> foldersByName = new LinkedHashMap<>();
+            for (Folder folder : targetFolders) {
+                foldersByName.put(folder.getFullName(), folder);
+            }
+            ChoiceDialog<String> choiceDialog = new ChoiceDialog<>(foldersByName.keySet().iterator().next(), foldersByName.keySet());
+            choiceDialog.setTitle("Move messages");
+            choiceDialog.setHeaderText("Move " + emailMessages.size() + " message(s) to folder:");
+            choiceDialog.showAndWait().ifPresent(folderName -> {
+                MoveMessagesService moveMessagesService = this.emailManager.moveMessages(emailMessages, foldersByName.get(folderName));
+                this.messageRendererService.clearMessage();
+
+                // progress of moving is displayed under Email Tree View until the service ends
+                operationProgressBar.progressProperty().bind(moveMessagesService.progressProperty());
+                operationProgressBar.visibleProperty().bind(moveMessagesService.runningProperty());
+            });
         });
 
         showMessageDetailsMenuItem.setOnAction(event -> {
             this.viewFactory.showMessageDetailsWindow();
         });
+
+        allowRemoteContentMenuItem.setOnAction(event -> {
+            EmailMessage emailMessage = this.emailManager.getSelectedMessage();
+            if (emailMessage != null) {
+                MessageRendererService.allowRemoteContent(emailMessage);
+                // message is rendered again - now with remote content:
+                messageRendererService.restart();
+            }
+        });
     }
 }
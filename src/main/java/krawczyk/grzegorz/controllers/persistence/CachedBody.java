@@ -0,0 +1,39 @@
+package krawczyk.grzegorz.controllers.persistence;
+
+import java.io.Serializable;
+
+/**
+ * Class holds content of one email message (text displayed in Web View, or plain text displayed line by line) saved in MessageCache.
+ * <hr></hr>
+ * Attachments of the message are known from its structure (see EmailAttachment) and saved in separate files named by hash
+ * of their content (see MessageCache.saveAttachment()), so the same attachment of many messages is saved only once.
+ */
+public class CachedBody implements Serializable {
+
+    /**
+     * Version of format of saved object - it has to be changed only when saved objects can't be read anymore
+     * (new fields can be added without changing it).
+     */
+    private static final long serialVersionUID = 1L;
+
+    private String content;
+    private boolean plainText;
+
+    /**
+     * Constructor of class CachedBody
+     * @param content   - content of the message
+     * @param plainText - true if content is plain text (not HTML)
+     */
+    public CachedBody(String content, boolean plainText) {
+        this.content = content;
+        this.plainText = plainText;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public boolean isPlainText() {
+        return plainText;
+    }
+}
@@ -0,0 +1,61 @@
+package krawczyk.grzegorz.controllers.persistence;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class holds one folder of email account (and its subfolders) saved in local file.
+ * <hr></hr>
+ * Saved folders are displayed in Email Tree View right after start of the application,
+ * before the application connects to the server (see EmailManager.addCachedEmailAccount()).
+ * It's separate from EmailTreeItem because it does need only this data (and it has to be Serializable).
+ */
+public class CachedFolder implements Serializable {
+
+    /**
+     * Version of format of saved object - it has to be changed only when saved objects can't be read anymore
+     * (new fields can be added without changing it).
+     */
+    private static final long serialVersionUID = 1L;
+
+    private String name;
+    private String fullName;
+    private int totalMessagesCount;
+    private int unreadMessagesCount;
+    private ArrayList<CachedFolder> subfolders = new ArrayList<>();
+
+    /**
+     * Constructor of class CachedFolder
+     * @param name                - name of the folder displayed in Email Tree View
+     * @param fullName            - full name of the folder on the server (used to find saved headers of its messages)
+     * @param totalMessagesCount  - number of all messages in the folder
+     * @param unreadMessagesCount - number of unread messages in the folder
+     */
+    public CachedFolder(String name, String fullName, int totalMessagesCount, int unreadMessagesCount) {
+        this.name = name;
+        this.fullName = fullName;
+        this.totalMessagesCount = totalMessagesCount;
+        this.unreadMessagesCount = unreadMessagesCount;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFullName() {
+        return fullName;
+    }
+
+    public int getTotalMessagesCount() {
+        return totalMessagesCount;
+    }
+
+    public int getUnreadMessagesCount() {
+        return unreadMessagesCount;
+    }
+
+    public List<CachedFolder> getSubfolders() {
+        return subfolders;
+    }
+}
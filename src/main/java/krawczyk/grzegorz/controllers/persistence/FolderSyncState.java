@@ -0,0 +1,77 @@
+package krawczyk.grzegorz.controllers.persistence;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class holds information about messages of one folder which were already fetched from server (synchronized).
+ * This data is saved locally, so after restart of the application only changes have to be fetched from server.
+ * <hr></hr>
+ * Messages are identified by UIDs. UIDs are valid only as long as UIDVALIDITY of the folder on the server doesn't change -
+ * if it changes, saved state can't be used and folder has to be fetched again.
+ */
+public class FolderSyncState implements Serializable {
+
+    /**
+     * Version of format of saved object - it has to be changed only when saved objects can't be read anymore
+     * (new fields can be added without changing it).
+     */
+    private static final long serialVersionUID = 1L;
+
+    private long uidValidity;
+    private long highestUid;
+
+    /**
+     * HIGHESTMODSEQ of the folder (0 if server doesn't support CONDSTORE).
+     * Server can send only changes which happened after this moment.
+     */
+    private long highestModSeq;
+
+    /**
+     * Headers of synchronized messages - from the newest to the oldest.
+     * All messages on the server with UIDs between UID of the last and the first header are saved here.
+     */
+    private ArrayList<MessageHeader> headers = new ArrayList<>();
+
+    /**
+     * Constructor of class FolderSyncState
+     * @param uidValidity   - UIDVALIDITY of the folder on the server
+     * @param highestUid    - the highest UID of synchronized messages
+     * @param highestModSeq - HIGHESTMODSEQ of the folder to which messages are synchronized (0 if server doesn't support CONDSTORE)
+     * @param headers       - headers of synchronized messages - from the newest to the oldest
+     */
+    public FolderSyncState(long uidValidity, long highestUid, long highestModSeq, List<MessageHeader> headers) {
+        this.uidValidity = uidValidity;
+        this.highestUid = highestUid;
+        this.highestModSeq = highestModSeq;
+        this.headers = new ArrayList<>(headers);
+    }
+
+    public long getUidValidity() {
+        return uidValidity;
+    }
+
+    public long getHighestUid() {
+        return highestUid;
+    }
+
+    public long getHighestModSeq() {
+        return highestModSeq;
+    }
+
+    /**
+     * Method returns UID of the oldest synchronized message.
+     * @return long - the lowest UID of synchronized messages (0 if there are no messages)
+     */
+    public long getLowestUid() {
+        if (headers.isEmpty()) {
+            return 0;
+        }
+        return headers.get(headers.size() - 1).getUid();
+    }
+
+    public List<MessageHeader> getHeaders() {
+        return headers;
+    }
+}
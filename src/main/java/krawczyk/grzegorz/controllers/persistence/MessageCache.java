@@ -0,0 +1,342 @@
+package krawczyk.grzegorz.controllers.persistence;
+
+import javax.mail.Folder;
+import javax.mail.Store;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class is responsible for saving and loading contents of email messages (see CachedBody) and their attachments from local files,
+ * so message opened once is displayed again without downloading it from server.
+ * <hr></hr>
+ * Every email account has its own cache (in directory named by email address of the account):
+ * <ul>
+ *     <li>content of the message is saved in file named by folder and UID of the message (see toFileName()),</li>
+ *     <li>attachment is saved in file named by hash (SHA-256) of its content - the same attachment is saved only once.</li>
+ * </ul>
+ * Total size of files of the cache is limited (messageCacheSize property of EmailAccount).
+ * When it is exceeded, the least recently used files are deleted.
+ * <hr></hr>
+ * Cache is registered in LoginService for every logged-in account (see register()). Caches are kept by email address,
+ * so when the account logs in again (with new Store), the same cache is used.
+ */
+public class MessageCache {
+
+    /**
+     * Caches of all logged-in accounts by email address of the account.
+     */
+    private static final Map<String, MessageCache> messageCaches = new ConcurrentHashMap<>();
+
+    /**
+     * Email addresses of accounts by their Stores - used by services which get only folder or message.
+     */
+    private static final Map<Store, String> emailAddresses = new ConcurrentHashMap<>();
+
+    /**
+     * Path to directory with caches of all accounts
+     */
+    private String CACHE_LOCATION = System.getProperty("user.home") + File.separator + ".emailApp" + File.separator + "cache";
+
+    private File bodiesDirectory;
+    private File attachmentsDirectory;
+    private long maxSize;
+
+    /**
+     * Files of the cache (with their sizes) from the least recently used to the most recently used.
+     * It is filled from directory of the cache when cache is used for the first time.
+     */
+    private LinkedHashMap<File, Long> files;
+    private long size;
+
+    /**
+     * Constructor of MessageCache class.
+     * @param emailAddress - email address of the account
+     * @param maxSize      - maximal total size of files of the cache in bytes
+     */
+    private MessageCache(String emailAddress, long maxSize) {
+        File directory = new File(CACHE_LOCATION, toFileName(emailAddress));
+        this.bodiesDirectory = new File(directory, "bodies");
+        this.attachmentsDirectory = new File(directory, "attachments");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Method registers Store of logged-in account - its folders use cache of the account (it is created if account has no cache yet).
+     * @param store        - Store of email account (connected in LoginService)
+     * @param emailAddress - email address of the account
+     * @param maxSize      - maximal total size of files of the cache in bytes
+     * @return MessageCache - cache of the account
+     */
+    public static MessageCache register(Store store, String emailAddress, long maxSize) {
+        emailAddresses.put(store, emailAddress);
+        return messageCaches.computeIfAbsent(emailAddress, address -> new MessageCache(address, maxSize));
+    }
+
+    /**
+     * Method returns cache of the account with passed email address.
+     * @param emailAddress - email address of the account
+     * @return MessageCache - cache of the account, or null if account has no cache
+     */
+    public static MessageCache getMessageCache(String emailAddress) {
+        return messageCaches.get(emailAddress);
+    }
+
+    /**
+     * Method returns cache of the account to which passed folder belongs.
+     * @param folder - object of the class Folder - folder in Store, or null (message loaded from local file isn't in any folder
+     *               until the application connects to the server)
+     * @return MessageCache - cache of the account, or null if folder is null or account has no cache
+     */
+    public static MessageCache getMessageCache(Folder folder) {
+        if (folder == null) {
+            return null;
+        }
+        String emailAddress = emailAddresses.get(folder.getStore());
+        return emailAddress != null ? messageCaches.get(emailAddress) : null;
+    }
+
+    /**
+     * Method reads saved content of the message.
+     * @param folderName - full name of the folder on the server
+     * @param uid        - UID of the message
+     * @return CachedBody - saved content, or null if the message isn't saved
+     */
+    public synchronized CachedBody loadBody(String folderName, long uid) {
+        File file = getBodyFile(folderName, uid);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            CachedBody cachedBody = (CachedBody) objectInputStream.readObject();
+            touch(file);
+            return cachedBody;
+        } catch (InvalidClassException e) {
+            // File was saved by version of the application with other format of the body - message is loaded from the server again.
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Method saves content of the message.
+     * @param folderName - full name of the folder on the server
+     * @param uid        - UID of the message
+     * @param cachedBody - content of the message
+     */
+    public synchronized void saveBody(String folderName, long uid, CachedBody cachedBody) {
+        File file = getBodyFile(folderName, uid);
+        file.getParentFile().mkdirs();
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            objectOutputStream.writeObject(cachedBody);
+        } catch (Exception e) {
+            e.printStackTrace();
+            temporaryFile.delete();
+            return;
+        }
+
+        file.delete();
+        temporaryFile.renameTo(file);
+        added(file);
+    }
+
+    /**
+     * Method deletes saved contents of all messages of the folder (e.g. when UIDVALIDITY of the folder changed and UIDs point to different messages).
+     * @param folderName - full name of the folder on the server
+     */
+    public synchronized void clearFolder(String folderName) {
+        File[] folderFiles = new File(bodiesDirectory, toFileName(folderName)).listFiles();
+        if (folderFiles == null) {
+            return;
+        }
+        for (File file : folderFiles) {
+            removed(file);
+            file.delete();
+        }
+    }
+
+    /**
+     * Method returns saved file of the attachment.
+     * @param contentHash - hash of the content of the attachment
+     * @return File - file with content of the attachment, or null if it isn't saved
+     */
+    public synchronized File getAttachment(String contentHash) {
+        File file = new File(attachmentsDirectory, contentHash);
+        if (!file.exists()) {
+            return null;
+        }
+        touch(file);
+        return file;
+    }
+
+    /**
+     * Method saves content of the attachment read from passed stream. Hash of the content is calculated while it is read,
+     * and then file is named by this hash.
+     * @param inputStream - stream with content of the attachment (e.g. from MimeBodyPart)
+     * @return String - hash of the content of the attachment
+     * @throws IOException
+     */
+    public String saveAttachment(InputStream inputStream) throws IOException {
+        MessageDigest messageDigest;
+        try {
+            messageDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        // Content is downloaded to temporary file outside of synchronized block - downloading can take long time.
+        attachmentsDirectory.mkdirs();
+        File temporaryFile = File.createTempFile("attachment", ".tmp", attachmentsDirectory);
+        try (InputStream digestInputStream = new DigestInputStream(inputStream, messageDigest);
+             OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(temporaryFile))) {
+            digestInputStream.transferTo(outputStream);
+        }
+
+        StringBuilder contentHash = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            contentHash.append(String.format("%02x", b));
+        }
+
+        synchronized (this) {
+            File file = new File(attachmentsDirectory, contentHash.toString());
+            if (file.exists()) {
+                // The same attachment was already saved (e.g. from other message).
+                temporaryFile.delete();
+                touch(file);
+            } else {
+                temporaryFile.renameTo(file);
+                added(file);
+            }
+        }
+        return contentHash.toString();
+    }
+
+    /**
+     * Method marks file as the most recently used.
+     * @param file - file of the cache
+     */
+    private void touch(File file) {
+        getFiles().get(file);
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Method adds new (or changed) file to the files of the cache and deletes the least recently used files if cache is too big.
+     * @param file - saved file of the cache
+     */
+    private void added(File file) {
+        removed(file);
+        long fileSize = file.length();
+        getFiles().put(file, fileSize);
+        size += fileSize;
+
+        Iterator<Map.Entry<File, Long>> iterator = files.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<File, Long> eldest = iterator.next();
+            if (!eldest.getKey().equals(file)) {
+                iterator.remove();
+                size -= eldest.getValue();
+                eldest.getKey().delete();
+            }
+        }
+    }
+
+    /**
+     * Method removes file from the files of the cache (it doesn't delete the file).
+     * @param file - file of the cache
+     */
+    private void removed(File file) {
+        Long fileSize = getFiles().remove(file);
+        if (fileSize != null) {
+            size -= fileSize;
+        }
+    }
+
+    /**
+     * Method returns files of the cache. When it is called for the first time, it reads them from directory of the cache
+     * and orders them by time of last use (time of modification is changed every time file is used).
+     * @return LinkedHashMap<File, Long> - files of the cache with their sizes
+     */
+    private LinkedHashMap<File, Long> getFiles() {
+        if (files == null) {
+            files = new LinkedHashMap<>(16, 0.75f, true);
+            List<File> existingFiles = new ArrayList<>();
+            listFiles(bodiesDirectory, existingFiles);
+            listFiles(attachmentsDirectory, existingFiles);
+            existingFiles.sort(Comparator.comparingLong(File::lastModified));
+            for (File file : existingFiles) {
+                files.put(file, file.length());
+                size += file.length();
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Method adds all files from the directory (and its subdirectories) to passed list.
+     * @param directory - directory of the cache
+     * @param result    - list to which files are added
+     */
+    private void listFiles(File directory, List<File> result) {
+        File[] directoryFiles = directory.listFiles();
+        if (directoryFiles == null) {
+            return;
+        }
+        for (File file : directoryFiles) {
+            if (file.isDirectory()) {
+                listFiles(file, result);
+            } else if (!file.getName().endsWith(".tmp")) {
+                result.add(file);
+            }
+        }
+    }
+
+    /**
+     * Method returns file in which content of the message is saved.
+     * @param folderName - full name of the folder on the server
+     * @param uid        - UID of the message
+     * @return File - file with saved content
+     */
+    private File getBodyFile(String folderName, long uid) {
+        return new File(new File(bodiesDirectory, toFileName(folderName)), uid + ".body");
+    }
+
+    /**
+     * Method changes name (e.g. full name of the folder) into name of directory. Characters which can't be used in file names
+     * are replaced, so different names could give the same result (e.g. "a b" and "a_b", or names with non-ASCII letters) -
+     * hash of the original name is added, so every name has its own directory. Hash doesn't depend on case of letters
+     * of the file system, because it is written with digits and lowercase letters only.
+     * <hr></hr>
+     * It is used also by SyncStateAccess for files with states of folders.
+     * @param name - name of the folder or email address
+     * @return String - name of the file or directory
+     */
+    static String toFileName(String name) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder fileName = new StringBuilder(name.replaceAll("[^A-Za-z0-9.@_-]", "_").toLowerCase(Locale.ROOT)).append('-');
+            for (int i = 0; i < 8; i++) {
+                fileName.append(String.format("%02x", hash[i]));
+            }
+            return fileName.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package krawczyk.grzegorz.controllers.persistence;
+
+import krawczyk.grzegorz.models.EmailAttachment;
+import krawczyk.grzegorz.models.EmailMessage;
+
+import java.io.Serializable;
+import java.util.Date;
+import java.util.ArrayList;
+
+/**
+ * Class holds headers of one email message (data displayed in Email Table View) saved in local file.
+ * <hr></hr>
+ * It's separate from EmailMessage because it does need only this data (and it has to be Serializable).
+ */
+public class MessageHeader implements Serializable {
+
+    /**
+     * Version of format of saved object - it has to be changed only when saved objects can't be read anymore
+     * (new fields can be added without changing it).
+     */
+    private static final long serialVersionUID = 1L;
+
+    private long uid;
+    private String subject;
+    private String sender;
+    private String recipient;
+    private int size;
+    private long sentDate;
+    private boolean wasRead;
+    private ArrayList<EmailAttachment> attachments;
+
+    /**
+     * Constructor of class MessageHeader. It copies data from passed EmailMessage.
+     * @param emailMessage - email message in the application
+     */
+    public MessageHeader(EmailMessage emailMessage) {
+        this.uid = emailMessage.getUid();
+        this.subject = emailMessage.getSubject();
+        this.sender = emailMessage.getSender();
+        this.recipient = emailMessage.getRecipient();
+        this.size = emailMessage.getSize().getSize();
+        this.sentDate = emailMessage.getDate() == null ? 0 : emailMessage.getDate().getTime();
+        this.wasRead = emailMessage.getWasRead();
+        this.attachments = new ArrayList<>(emailMessage.getAttachmentsList());
+    }
+
+    /**
+     * Method creates email message in the application from saved headers.
+     * @param wasRead - information if the message was read (flags are taken from server, so saved value can be out of date)
+     * @return EmailMessage - email message in the application
+     */
+    public EmailMessage toEmailMessage(boolean wasRead) {
+        EmailMessage emailMessage = new EmailMessage(subject, sender, recipient, size, sentDate == 0 ? null : new Date(sentDate), wasRead, uid);
+        // Headers saved before attachments were saved with them (class has the same serialVersionUID) have no attachments.
+        if (attachments != null) {
+            emailMessage.setAttachments(attachments);
+        }
+        return emailMessage;
+    }
+
+    /**
+     * Method returns UID of the message (identifier of the message in its folder on the server)
+     * @return long - UID of the message
+     */
+    public long getUid() {
+        return uid;
+    }
+
+    /**
+     * Method returns if the message was read when headers were saved
+     * @return boolean - true if the message was read
+     */
+    public boolean getWasRead() {
+        return wasRead;
+    }
+}
@@ -0,0 +1,82 @@
+package krawczyk.grzegorz.controllers.persistence;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Class is responsible for saving and loading list of senders whose messages can load remote content
+ * (images, styles and fonts from servers on the internet) from local file.
+ * <hr></hr>
+ * Remote content is blocked by default (see MessageRendererService), because it slows displaying of the message
+ * and lets sender know when the message was read.
+ */
+public class RemoteContentAccess {
+
+    /**
+     * Path to file with allowed senders
+     */
+    private String ALLOWED_SENDERS_LOCATION = System.getProperty("user.home") + File.separator + ".emailApp" + File.separator + "remoteContentSenders.ser";
+
+    private Set<String> allowedSenders;
+
+    /**
+     * Method returns true if messages from passed sender can load remote content.
+     * @param sender - sender of the message (email address, can be with name - e.g. "Name <address>")
+     * @return boolean - true if remote content is allowed
+     */
+    public synchronized boolean isAllowed(String sender) {
+        return getAllowedSenders().contains(toAddress(sender));
+    }
+
+    /**
+     * Method allows loading of remote content in messages from passed sender and saves list of allowed senders.
+     * @param sender - sender of the message (email address, can be with name - e.g. "Name <address>")
+     */
+    public synchronized void allow(String sender) {
+        if (!getAllowedSenders().add(toAddress(sender))) {
+            return;
+        }
+
+        File file = new File(ALLOWED_SENDERS_LOCATION);
+        file.getParentFile().mkdirs();
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new FileOutputStream(file))) {
+            objectOutputStream.writeObject(allowedSenders);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method returns allowed senders. When it is called for the first time, it reads them from local file.
+     * @return Set<String> - email addresses of allowed senders
+     */
+    private Set<String> getAllowedSenders() {
+        if (allowedSenders == null) {
+            allowedSenders = new HashSet<>();
+            File file = new File(ALLOWED_SENDERS_LOCATION);
+            if (file.exists()) {
+                try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(file))) {
+                    allowedSenders.addAll((Set<String>) objectInputStream.readObject());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return allowedSenders;
+    }
+
+    /**
+     * Method returns only email address from sender of the message (without name), in lower case.
+     * @param sender - sender of the message
+     * @return String - email address of the sender
+     */
+    private String toAddress(String sender) {
+        int start = sender.lastIndexOf('<');
+        int end = sender.lastIndexOf('>');
+        if (start >= 0 && end > start) {
+            sender = sender.substring(start + 1, end);
+        }
+        return sender.trim().toLowerCase();
+    }
+}
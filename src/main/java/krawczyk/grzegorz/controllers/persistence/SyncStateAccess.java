@@ -0,0 +1,130 @@
+package krawczyk.grzegorz.controllers.persistence;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class is responsible for saving and loading states of synchronization of folders (FolderSyncState) from local files.
+ * <hr></hr>
+ * Every folder of every email account has its own file. Tree of folders of the account is saved in separate file.
+ */
+public class SyncStateAccess {
+
+    /**
+     * Path to directory with saved states
+     */
+    private String SYNC_STATES_LOCATION = System.getProperty("user.home") + File.separator + ".emailApp" + File.separator + "sync";
+
+    /**
+     * Method reads state of synchronization of the folder from local file.
+     * @param emailAddress - email address of account to which folder belongs
+     * @param folderName   - full name of the folder on the server
+     * @return FolderSyncState - saved state, or null if folder wasn't saved yet (or file can't be read)
+     */
+    public FolderSyncState load(String emailAddress, String folderName) {
+        File file = getFile(emailAddress, folderName);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (FolderSyncState) objectInputStream.readObject();
+        } catch (InvalidClassException e) {
+            // File was saved by version of the application with other format of the state (other serialVersionUID) -
+            // folder is synchronized from the beginning, and the file is replaced with next save.
+            return null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Method saves state of synchronization of the folder to local file.
+     * @param emailAddress    - email address of account to which folder belongs
+     * @param folderName      - full name of the folder on the server
+     * @param folderSyncState - state to save
+     */
+    public void save(String emailAddress, String folderName, FolderSyncState folderSyncState) {
+        writeToFile(getFile(emailAddress, folderName), folderSyncState);
+    }
+
+    /**
+     * Method reads tree of folders of the account from local file.
+     * @param emailAddress - email address of account
+     * @return List<CachedFolder> - saved folders of the account (with their subfolders), or empty list if they weren't saved yet
+     */
+    public List<CachedFolder> loadFolderTree(String emailAddress) {
+        File file = getFolderTreeFile(emailAddress);
+        if (!file.exists()) {
+            return new ArrayList<>();
+        }
+
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (List<CachedFolder>) objectInputStream.readObject();
+        } catch (InvalidClassException e) {
+            // File was saved by version of the application with other format of folders - tree is loaded from the server.
+            return new ArrayList<>();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return new ArrayList<>();
+        }
+    }
+
+    /**
+     * Method saves tree of folders of the account to local file.
+     * @param emailAddress  - email address of account
+     * @param cachedFolders - folders of the account (with their subfolders)
+     */
+    public void saveFolderTree(String emailAddress, List<CachedFolder> cachedFolders) {
+        writeToFile(getFolderTreeFile(emailAddress), cachedFolders);
+    }
+
+    /**
+     * Method writes passed object to the file.
+     * Object is written to temporary file first, so a crash during saving doesn't destroy previously saved file.
+     * @param file   - file to write
+     * @param object - object to write
+     */
+    private void writeToFile(File file, Object object) {
+        file.getParentFile().mkdirs();
+
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            objectOutputStream.writeObject(object);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        file.delete();
+        temporaryFile.renameTo(file);
+    }
+
+    /**
+     * Method returns file in which tree of folders of the account is saved.
+     * Its extension is different from files of folders, so it can't have the same name as any of them.
+     * @param emailAddress - email address of account
+     * @return File - file with saved folders
+     */
+    private File getFolderTreeFile(String emailAddress) {
+        return new File(SYNC_STATES_LOCATION + File.separator + toFileName(emailAddress), "folders.tree");
+    }
+
+    /**
+     * Method returns file in which state of the folder is saved.
+     * Every folder has its own file - also folders whose names differ only by characters which can't be used in file names
+     * or by case of letters (see MessageCache.toFileName()).
+     * @param emailAddress - email address of account to which folder belongs
+     * @param folderName   - full name of the folder on the server
+     * @return File - file with saved state
+     */
+    private File getFile(String emailAddress, String folderName) {
+        return new File(SYNC_STATES_LOCATION + File.separator + toFileName(emailAddress), toFileName(folderName) + ".ser");
+    }
+
+    private String toFileName(String name) {
+        return MessageCache.toFileName(name);
+    }
+}
@@ -0,0 +1,263 @@
+package krawczyk.grzegorz.controllers.services;
+
+import javax.mail.Folder;
+import javax.mail.Store;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Class limits number of IMAP connections used by the application for one email account.
+ * <hr></hr>
+ * Email providers allow only few connections of one account at the same moment (too many connections are throttled or refused).
+ * Every open folder on the server has its own connection, and commands for closed folders (e.g. STATUS) use connection of the Store.
+ * So pool limits:
+ * <ul>
+ *     <li>
+ *         number of commands sent at the same moment - every background task which talks to the server borrows a connection
+ *         (see withConnection() and tryBorrow()), and waits if all maxConnections are borrowed,
+ *     </li>
+ *     <li>
+ *         number of open folders - when another folder has to be opened, the least recently used folder is closed
+ *         (one connection is left for the Store). Folder which is used at the moment (see borrowFolder()) is never closed -
+ *         also folder watched in IDLE mode (see FolderIdleService). INBOX is never closed either.
+ *         If all open folders are used, another folder is opened anyway and the limit is exceeded for a moment.
+ *     </li>
+ * </ul>
+ * Services which display messages of a folder find out that it was closed (ConnectionListener) and synchronize it
+ * again when it is opened again (see FetchMessagesService).
+ * <hr></hr>
+ * Pool has also executor shared by all Services fetching data of the account (see Service.setExecutor()),
+ * so their tasks wait in one queue instead of starting all at once in new threads.
+ * <hr></hr>
+ * Pool is created in LoginService for every logged-in account. Connection which waits in IDLE mode (see FolderIdleService)
+ * is not borrowed - it is connection of open INBOX or selected folder, which is already counted as open folder
+ * (the folder itself is borrowed, so it isn't closed while it is in IDLE mode).
+ */
+public class ConnectionPool {
+
+    /**
+     * Pools of all logged-in accounts by Store of the account - used by services which get only folder or message (e.g. MessageRendererService).
+     */
+    private static final Map<Store, ConnectionPool> connectionPools = new ConcurrentHashMap<>();
+
+    private final int maxConnections;
+    private final Semaphore connections;
+    private final ExecutorService executor;
+
+    /**
+     * Open folders from the least recently used to the most recently used.
+     */
+    private final Set<Folder> openFolders = new LinkedHashSet<>();
+
+    /**
+     * Number of users of every borrowed folder (see borrowFolder()) - it is changed only with lock of openFolders.
+     */
+    private final Map<Folder, Integer> folderUsers = new HashMap<>();
+
+    /**
+     * Constructor of ConnectionPool class.
+     * @param store          - Store of email account (connected in LoginService)
+     * @param maxConnections - maximal number of connections to the server used at the same moment (at least 2)
+     */
+    public ConnectionPool(Store store, int maxConnections) {
+        this.maxConnections = Math.max(2, maxConnections);
+        this.connections = new Semaphore(this.maxConnections, true);
+
+        // Executor threads are daemon threads, so they don't keep the application working after main window is closed.
+        this.executor = Executors.newFixedThreadPool(this.maxConnections, runnable -> {
+            Thread thread = new Thread(runnable, "imap-" + store.getURLName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        connectionPools.put(store, this);
+    }
+
+    /**
+     * Method returns pool of the account to which passed folder belongs.
+     * @param folder - object of the class Folder - folder in Store
+     * @return ConnectionPool - pool of the account, or null if account has no pool
+     */
+    public static ConnectionPool getConnectionPool(Folder folder) {
+        return getConnectionPool(folder.getStore());
+    }
+
+    /**
+     * Method returns pool of the account with passed Store.
+     * @param store - Store of email account
+     * @return ConnectionPool - pool of the account, or null if account has no pool
+     */
+    public static ConnectionPool getConnectionPool(Store store) {
+        return connectionPools.get(store);
+    }
+
+    /**
+     * Method returns executor which should be set to all Services working with the account (see Service.setExecutor()).
+     * @return ExecutorService - executor with maxConnections threads
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Method borrows connection, calls passed task and gives connection back.
+     * If all connections are borrowed, it waits until one of them is given back.
+     * @param task - task which sends commands to the server
+     * @return T - value returned by the task
+     * @throws Exception - exception thrown by the task
+     */
+    public <T> T withConnection(Callable<T> task) throws Exception {
+        connections.acquire();
+        try {
+            return task.call();
+        } finally {
+            connections.release();
+        }
+    }
+
+    /**
+     * Method borrows connection only if it is available right away (e.g. for checks which can be done later).
+     * Borrowed connection has to be given back with release() method.
+     * @return boolean - true if connection was borrowed
+     */
+    public boolean tryBorrow() {
+        return connections.tryAcquire();
+    }
+
+    /**
+     * Method gives back connection borrowed with tryBorrow().
+     */
+    public void release() {
+        connections.release();
+    }
+
+    /**
+     * Method borrows connection (see withConnection()), opens folder in READ_WRITE mode (if it isn't open yet),
+     * calls passed task and gives folder and connection back. Folder isn't closed by the pool while the task works.
+     * @param folder - object of the class Folder - folder in Store
+     * @param task   - task which sends commands with the folder
+     * @return T - value returned by the task
+     * @throws Exception - exception thrown by the task
+     */
+    public <T> T withFolder(Folder folder, Callable<T> task) throws Exception {
+        return withConnection(() -> useFolder(folder, task));
+    }
+
+    /**
+     * Method opens folder in READ_WRITE mode (if it isn't open yet), calls passed task and gives folder back.
+     * Folder isn't closed by the pool while the task works. Connection has to be borrowed already (e.g. with tryBorrow()).
+     * @param folder - object of the class Folder - folder in Store
+     * @param task   - task which sends commands with the folder
+     * @return T - value returned by the task
+     * @throws Exception - exception thrown by the task
+     */
+    public <T> T useFolder(Folder folder, Callable<T> task) throws Exception {
+        borrowFolder(folder);
+        try {
+            synchronized (folder) {
+                if (!folder.isOpen()) {
+                    folder.open(Folder.READ_WRITE);
+                }
+            }
+            return task.call();
+        } finally {
+            returnFolder(folder);
+        }
+    }
+
+    /**
+     * Method marks folder as used, so it isn't closed by the pool until it is given back with returnFolder(),
+     * and it makes place for it among open folders (if it isn't open yet, the least recently used folder is closed).
+     * Folder isn't opened - it is used when folder is opened in special way (e.g. with QRESYNC in FetchMessagesService).
+     * <hr></hr>
+     * It must not be called with lock of any folder - closed folder is locked too.
+     * Messages of closed folder are found again by UIDs when folder is opened again (see EmailMessage.getMessage()).
+     * @param folder - object of the class Folder - folder in Store which is going to be used
+     */
+    public void borrowFolder(Folder folder) {
+        List<Folder> foldersToClose = new ArrayList<>();
+        synchronized (openFolders) {
+            folderUsers.merge(folder, 1, Integer::sum);
+            openFolders.removeIf(openFolder -> !openFolder.isOpen() && !folderUsers.containsKey(openFolder));
+            openFolders.remove(folder);
+
+            // One connection is left for the Store (commands for closed folders).
+            if (!folder.isOpen()) {
+                int openFoldersCount = openFolders.size();
+                Iterator<Folder> iterator = openFolders.iterator();
+                while (openFoldersCount >= maxConnections - 1 && iterator.hasNext()) {
+                    Folder openFolder = iterator.next();
+                    if (!folderUsers.containsKey(openFolder) && !openFolder.getName().equalsIgnoreCase("INBOX")) {
+                        iterator.remove();
+                        foldersToClose.add(openFolder);
+                        openFoldersCount--;
+                    }
+                }
+            }
+            openFolders.add(folder);
+        }
+
+        for (Folder folderToClose : foldersToClose) {
+            closeUnusedFolder(folderToClose);
+        }
+    }
+
+    /**
+     * Method marks folder as used only if it is open at the moment (e.g. for checks of open folders which can't open them).
+     * Borrowed folder has to be given back with returnFolder() method.
+     * @param folder - object of the class Folder - folder in Store
+     * @return boolean - true if folder is open and it was borrowed
+     */
+    public boolean borrowFolderIfOpen(Folder folder) {
+        synchronized (openFolders) {
+            if (!folder.isOpen()) {
+                return false;
+            }
+            folderUsers.merge(folder, 1, Integer::sum);
+            return true;
+        }
+    }
+
+    /**
+     * Method gives back folder borrowed with borrowFolder() or borrowFolderIfOpen(). Folder stays open -
+     * it is closed only when place for another folder is needed.
+     * @param folder - object of the class Folder - folder in Store
+     */
+    public void returnFolder(Folder folder) {
+        synchronized (openFolders) {
+            folderUsers.computeIfPresent(folder, (key, users) -> users > 1 ? users - 1 : null);
+        }
+    }
+
+    /**
+     * Method closes folder chosen to make place for another folder - unless it was borrowed in the meantime.
+     * Folder is locked while it is closed, so other thread which borrowed it opens it again only after it is closed.
+     * @param folder - object of the class Folder - folder in Store
+     */
+    private void closeUnusedFolder(Folder folder) {
+        synchronized (folder) {
+            synchronized (openFolders) {
+                if (folderUsers.containsKey(folder)) {
+                    return;
+                }
+            }
+            try {
+                if (folder.isOpen()) {
+                    // false - messages marked as deleted are not removed from the server.
+                    folder.close(false);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -1,18 +1,30 @@
 package krawczyk.grzegorz.controllers.services;
 
+import javafx.application.Platform;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
+import javafx.scene.control.TreeItem;
+import com.sun.mail.imap.MessageVanishedEvent;
+import krawczyk.grzegorz.models.EmailAccount;
+import krawczyk.grzegorz.models.EmailMessage;
 import krawczyk.grzegorz.models.EmailTreeItem;
+import krawczyk.grzegorz.models.MailboxStore;
 import krawczyk.grzegorz.views.IconResolver;
 
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
 import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Store;
+import javax.mail.UIDFolder;
+import javax.mail.event.MessageChangedEvent;
 import javax.mail.event.MessageCountEvent;
 import javax.mail.event.MessageCountListener;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Controller responsible for fetching folders from email account.
@@ -24,28 +36,34 @@ import java.util.List;
  */
 public class FetchFolderService extends Service<Void> {
 
+    private EmailAccount emailAccount;
     private Store store;
     private EmailTreeItem<String> foldersRoot;
     private IconResolver iconResolver = new IconResolver();
 
     /**
-     * List of all folders in the application (objects of class Folder - folders from server side)
+     * Service watching folders for new and deleted messages and refreshing numbers of their messages (without opening them).
      */
-    private List<Folder> folderList;
+    private FolderUpdaterService folderUpdaterService;
 
     /**
      * Constructor of FetchFolderService class.
      * <hr></hr>
      * It is created in EmailManager.addEmailAccount() method.
-     * @param store       - object of class Store. It is field of EmailAccount class (object is created when login in)
+     * @param emailAccount - object of class EmailAccount. Its Store (created when login in) is used to get folders,
+     *                     and its properties hold fetching configuration.
      * @param foldersRoot - root folder to which folders are added by this class - email address folder.
      *                    It is object of class EmailTreeItem - folder from application end, folder in Email Tree View in main window of the application.
-     * @param folderList - list of all folders in the application - objects of class Folder (folders from server end)
+     * @param folderUpdaterService - service to which all folders holding messages are added, so they are watched for changes
      */
-    public FetchFolderService(Store store, EmailTreeItem<String> foldersRoot, List<Folder> folderList) {
-        this.store = store;
+    public FetchFolderService(EmailAccount emailAccount, EmailTreeItem<String> foldersRoot, FolderUpdaterService folderUpdaterService) {
+        this.emailAccount = emailAccount;
+        this.store = emailAccount.getStore();
         this.foldersRoot = foldersRoot;
-        this.folderList = folderList;
+        this.folderUpdaterService = folderUpdaterService;
+
+        // Folders are fetched with connection borrowed from pool of the account (see ConnectionPool).
+        this.setExecutor(ConnectionPool.getConnectionPool(store).getExecutor());
     }
 
     // In EmailManager there is fetchFolderService.start() method called.
@@ -55,8 +73,10 @@ public class FetchFolderService extends Service<Void> {
         return new Task<Void>() {
             @Override
             protected Void call() throws Exception {
-                fetchFolders();
-                return null;
+                return ConnectionPool.getConnectionPool(store).withConnection(() -> {
+                    fetchFolders();
+                    return null;
+                });
             }
         };
     }
@@ -87,22 +107,31 @@ public class FetchFolderService extends Service<Void> {
     private void handleFolders(Folder[] folders, EmailTreeItem<String> foldersRoot) throws MessagingException {
         // For every folder in folders array:
         for (Folder folder : folders) {
-            // it adds current folder to folderList - populate folderList
-            this.folderList.add(folder);
+            // it adds current folder to list of all folders in the application (see MailboxStore)
+            MailboxStore.addFolder(folder);
+
+            // If the folder was loaded from local file (see LoadCachedAccountService), its EmailTreeItem is used -
+            // it already displays saved messages, which are synchronized with the server when folder is opened.
+            EmailTreeItem<String> emailTreeItem = findChild(foldersRoot, folder.getName());
+            if (emailTreeItem == null) {
+                // It creates new EmailTreeItem from the folder
+                emailTreeItem = new EmailTreeItem<>(folder.getName());
 
-            // It creates new EmailTreeItem from the folder
-            EmailTreeItem<String> emailTreeItem = new EmailTreeItem<>(folder.getName());
+                // It adds picture (icon) to the folder name
+                emailTreeItem.setGraphic(iconResolver.getIconForFolder(folder.getName()));
 
-            // It adds picture (icon) to the folder name
-            emailTreeItem.setGraphic(iconResolver.getIconForFolder(folder.getName()));
+                // It adds folder to the root folder (emailAddress folder).
+                // Email Tree View can already display the root folder, so it is changed only in JavaFX thread.
+                EmailTreeItem<String> newEmailTreeItem = emailTreeItem;
+                Platform.runLater(() -> foldersRoot.getChildren().add(newEmailTreeItem));
+            }
+            emailTreeItem.setFolder(folder);
 
-            // It adds folder to the root folder (emailAddress folder)
-            foldersRoot.getChildren().add(emailTreeItem);
             // EmailAddres TreeItem is set to be expanded.
             // If TreeView element has children (next subfolders) they will be visible by default.
             foldersRoot.setExpanded(true);
 
-            fetchMessagesFromFolder(folder, emailTreeItem);
+            setUpMessagesFetching(folder, emailTreeItem);
 
             addMessageListenerToFolder(folder, emailTreeItem);
 
@@ -117,45 +146,60 @@ public class FetchFolderService extends Service<Void> {
                 handleFolders(subfolders, emailTreeItem);
             }
         }
+
+        // Folders loaded from local file which don't exist on the server anymore are removed.
+        Platform.runLater(() -> foldersRoot.getChildren().removeIf(child -> ((EmailTreeItem<String>) child).getFolder() == null));
     }
 
     /**
-     * Method adds emails from folder to emailTreeItem.
+     * Method finds child of passed EmailTreeItem with passed name (e.g. folder loaded from local file).
+     * @param parent - object of the class EmailTreeItem - folder in TreeView menu
+     * @param name   - name of the folder
+     * @return EmailTreeItem - child with passed name, or null if there is no such child
+     */
+    private EmailTreeItem<String> findChild(EmailTreeItem<String> parent, String name) {
+        for (TreeItem<String> child : new ArrayList<>(parent.getChildren())) {
+            EmailTreeItem<String> emailTreeItem = (EmailTreeItem<String>) child;
+            if (emailTreeItem.getFolder() == null && name.equals(emailTreeItem.getName())) {
+                return emailTreeItem;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method prepares fetching emails from folder to emailTreeItem.
      * <hr></hr>
-     * For each folder method creates new separate Service.
+     * For each folder method creates new separate FetchMessagesService, but doesn't start it.
+     * Folder stays closed (and no messages are fetched) until user selects it in Email Tree View -
+     * then first page of the newest messages is fetched (see EmailTreeItem.loadFirstPage()).
+     * Only INBOX is opened right away, because it is watched for new messages.
+     * Until then, number of unread messages is refreshed by folderUpdaterService.
      *
      * @param folder        - object of the class Folder - folder in Store from which email messages are taken
      * @param emailTreeItem - object of the class EmailTreeItem - folder in TreeView menu in the application to which email messages are added
+     * @throws MessagingException
      */
-    private void fetchMessagesFromFolder(Folder folder, EmailTreeItem<String> emailTreeItem) {
+    private void setUpMessagesFetching(Folder folder, EmailTreeItem<String> emailTreeItem) throws MessagingException {
+        // If current folder has no subfolders:
+        if (folder.getType() != Folder.HOLDS_FOLDERS) {
+            // FetchMessagesService sets itself as loader of pages in emailTreeItem.
+            new FetchMessagesService(emailAccount, folder, emailTreeItem);
 
-        // Below fetchMessagesService object definition there in fetchMessagesService.start().
-        // start() method calls createTask() in which all background task code is.
-        Service fetchMessagesService = new Service() {
+            folderUpdaterService.addFolder(folder, emailTreeItem);
 
-            @Override
-            protected Task createTask() {
-                return new Task() {
-                    @Override
-                    protected Object call() throws Exception {
-                        // If current folder has no subfolders:
-                        if (folder.getType() != Folder.HOLDS_FOLDERS) {
-                            folder.open(Folder.READ_WRITE);
-                            int folderSize = folder.getMessageCount();
-                            for (int i = folderSize; i > 0; i--) {
-                                emailTreeItem.addEmail(folder.getMessage(i));
-                            }
-                        }
-                        return null;
-                    }
-                };
+            // INBOX is opened right away, so FolderUpdaterService can watch it for new messages (in IDLE mode).
+            // Pages are loaded in JavaFX thread (like when user selects a folder).
+            if (folder.getName().equalsIgnoreCase("INBOX")) {
+                Platform.runLater(emailTreeItem::loadFirstPage);
             }
-        };
-
-        fetchMessagesService.start();
+        }
     }
 
     /**
+     * Method adds listeners to the folder which update emailTreeItem when messages are added, deleted or changed on the server.
+     * <hr></hr>
+     * Listeners are called when server reports changes (in IDLE mode or when folder is checked by FolderUpdaterService).
      *
      * @param folder - object of class Folder - folder in Store from which email messages are taken
      * @param emailTreeItem - object of the class EmailTreeItem - folder in TreeView menu in the application to which email messages are added
@@ -166,20 +210,130 @@ public class FetchFolderService extends Service<Void> {
         folder.addMessageCountListener(new MessageCountListener() {
             @Override
             public void messagesAdded(MessageCountEvent e) {
-                for (int i = 0; i < e.getMessages().length; i++) {
-                    try {
-                        Message message = folder.getMessage(folder.getMessageCount()-i);
-                        emailTreeItem.addEmailToTop(message);
-                    } catch (MessagingException ex) {
-                        throw new RuntimeException(ex);
+                try {
+                    // Event contains all new messages - headers of all of them are downloaded with one FETCH command.
+                    Message[] messages = e.getMessages();
+                    folder.fetch(messages, FetchMessagesService.createFetchProfile());
+
+                    // Newest message is at the end of the array, and it should be on top of the list.
+                    List<EmailMessage> newEmailMessages = new ArrayList<>();
+                    for (int i = messages.length - 1; i >= 0; i--) {
+                        newEmailMessages.add(emailTreeItem.createEmailMessage(messages[i]));
                     }
+                    // Fetched data is kept only by EmailMessages - open folder keeps Message objects without it.
+                    MessageMemoryManager.releaseFetched(messages);
+
+                    // All messages are added with one event of MailboxStore, and displayed with next animation pulse.
+                    emailTreeItem.addEmailMessagesToTop(newEmailMessages);
+                } catch (MessagingException ex) {
+                    ex.printStackTrace();
                 }
             }
 
             @Override
             public void messagesRemoved(MessageCountEvent e) {
-                System.out.println("message deleted event: " + e);
+                try {
+                    // Next pages are found by UID of the oldest loaded message (see FetchMessagesService),
+                    // so numbers of messages which changed after deleting don't matter.
+                    Set<Long> removedUids = getRemovedUids(folder, emailTreeItem, e);
+
+                    // All messages are removed with one event of MailboxStore.
+                    emailTreeItem.removeEmailMessages(removedUids);
+                } catch (MessagingException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+
+        // When flags of a message change (e.g. message was read on other device), read / unread state is updated.
+        folder.addMessageChangedListener(e -> {
+            if (e.getMessageChangeType() == MessageChangedEvent.FLAGS_CHANGED) {
+                try {
+                    long uid = ((UIDFolder) folder).getUID(e.getMessage());
+                    boolean wasRead = e.getMessage().getFlags().contains(Flags.Flag.SEEN);
+
+                    emailTreeItem.updateWasRead(uid, wasRead);
+                } catch (MessagingException ex) {
+                    ex.printStackTrace();
+                }
             }
         });
     }
+
+    /**
+     * Method returns UIDs of messages deleted from the folder on the server.
+     * <hr></hr>
+     * With QRESYNC server reports deleted messages by UIDs (VANISHED). Otherwise it reports only their numbers (EXPUNGE),
+     * and UID of deleted message is known only if it was fetched before (e.g. with headers of loaded page).
+     * Messages older than the oldest loaded message can't be in emailTreeItem, so they are skipped - their numbers are lower than current
+     * number of the oldest loaded message (found by its UID). If UID of any other deleted message is unknown, UIDs of loaded messages
+     * are compared with UIDs still existing on the server.
+     *
+     * @param folder        - object of class Folder - folder in Store from which messages were deleted
+     * @param emailTreeItem - object of the class EmailTreeItem - folder in TreeView menu in the application
+     * @param e             - event with deleted messages
+     * @return Set<Long> - UIDs of deleted messages
+     * @throws MessagingException
+     */
+    private Set<Long> getRemovedUids(Folder folder, EmailTreeItem<String> emailTreeItem, MessageCountEvent e) throws MessagingException {
+        UIDFolder uidFolder = (UIDFolder) folder;
+        Set<Long> removedUids = new HashSet<>();
+
+        if (e instanceof MessageVanishedEvent) {
+            for (long uid : ((MessageVanishedEvent) e).getUIDs()) {
+                removedUids.add(uid);
+            }
+            return removedUids;
+        }
+
+        List<EmailMessage> loadedEmailMessages = emailTreeItem.getLoadedEmailMessages();
+        if (loadedEmailMessages.isEmpty()) {
+            return removedUids;
+        }
+
+        // Current number of the oldest loaded message - deleted messages with lower numbers were never loaded.
+        // If it can't be found (e.g. it was deleted too), all deleted messages with unknown UIDs are compared.
+        int oldestLoadedMessageNumber = 0;
+        try {
+            Message oldestLoadedMessage = uidFolder.getMessageByUID(loadedEmailMessages.get(loadedEmailMessages.size() - 1).getUid());
+            if (oldestLoadedMessage != null) {
+                oldestLoadedMessageNumber = oldestLoadedMessage.getMessageNumber();
+            }
+        } catch (MessagingException ex) {
+            ex.printStackTrace();
+        }
+
+        boolean unknownUids = false;
+        for (Message message : e.getMessages()) {
+            if (message.getMessageNumber() < oldestLoadedMessageNumber) {
+                continue;
+            }
+            try {
+                removedUids.add(uidFolder.getUID(message));
+            } catch (MessagingException ex) {
+                // Message is already deleted and its UID wasn't fetched before.
+                unknownUids = true;
+            }
+        }
+
+        if (unknownUids) {
+            Set<Long> loadedUids = new HashSet<>();
+            for (EmailMessage emailMessage : loadedEmailMessages) {
+                loadedUids.add(emailMessage.getUid());
+            }
+            // Only UIDs are downloaded - for messages from the oldest loaded one to the newest.
+            Message[] existingMessages = uidFolder.getMessagesByUID(loadedEmailMessages.get(loadedEmailMessages.size() - 1).getUid(), UIDFolder.LASTUID);
+            FetchProfile fetchProfile = new FetchProfile();
+            fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+            folder.fetch(existingMessages, fetchProfile);
+
+            for (Message message : existingMessages) {
+                if (message != null) {
+                    loadedUids.remove(uidFolder.getUID(message));
+                }
+            }
+            removedUids.addAll(loadedUids);
+        }
+        return removedUids;
+    }
 }
@@ -0,0 +1,724 @@
+package krawczyk.grzegorz.controllers.services;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.MessageVanishedEvent;
+import com.sun.mail.imap.ResyncData;
+import javafx.application.Platform;
+import javafx.concurrent.Service;
+import javafx.concurrent.Task;
+import krawczyk.grzegorz.controllers.persistence.FolderSyncState;
+import krawczyk.grzegorz.controllers.persistence.MessageCache;
+import krawczyk.grzegorz.controllers.persistence.MessageHeader;
+import krawczyk.grzegorz.controllers.persistence.SyncStateAccess;
+import krawczyk.grzegorz.models.EmailAccount;
+import krawczyk.grzegorz.models.EmailMessage;
+import krawczyk.grzegorz.models.EmailTreeItem;
+
+import javax.mail.FetchProfile;
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.UIDFolder;
+import javax.mail.event.ConnectionAdapter;
+import javax.mail.event.ConnectionEvent;
+import javax.mail.event.MailEvent;
+import javax.mail.event.MessageChangedEvent;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Controller responsible for fetching email messages (their headers) from one folder, page by page.
+ * <hr></hr>
+ * It extends Service class which is used to perform tasks on background Threads.
+ * Service class is part of JavaFX and it makes easier to manage multithreading code.
+ * <hr></hr>
+ * Every run of the service fetches one page (pageSize messages) - next older messages than already loaded to EmailTreeItem.
+ * First page is fetched when user selects the folder, next pages are fetched when user scrolls Email Table View to the end.
+ * Next page starts right below the oldest loaded message, which is found on the server by its UID - numbers of messages
+ * change when messages are deleted, UIDs don't.
+ * <hr></hr>
+ * Folder can be closed by ConnectionPool (to make place for other folder) or by server. While it is closed, server doesn't report
+ * any changes, so when it is opened again, loaded messages are synchronized with server again (see resynchronizeFolder()).
+ * <hr></hr>
+ * Headers of fetched messages are saved in local file (see SyncStateAccess). After restart of the application
+ * first "page" is made of saved headers - only messages newer than saved ones and flags (read / unread) of saved ones
+ * are fetched from server (only changed flags, if server supports CONDSTORE or QRESYNC).
+ * Folder is fetched again from the beginning only when its UIDVALIDITY changes (or when more than pageSize new messages came).
+ * Headers are saved to local file SYNC_STATE_SAVE_DELAY milliseconds after the last fetched page (and when the application is closed),
+ * so scrolling through many pages doesn't write the whole file again after every page.
+ * <hr></hr>
+ * Service won't return anything (it returns Void object).
+ */
+public class FetchMessagesService extends Service<Void> {
+
+    /**
+     * Time (in milliseconds) after the last fetched page, after which headers of the folder are saved to local file.
+     */
+    private static final long SYNC_STATE_SAVE_DELAY = 10 * 1000;
+
+    /**
+     * Scheduler which saves headers of folders to local files in background thread.
+     * Its thread is daemon thread, so it doesn't keep the application working after main window is closed.
+     */
+    private static final ScheduledExecutorService syncStateSaver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "sync-state-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Services which headers are not saved yet - they are saved when the application is closed (see saveSyncStates()).
+     */
+    private static final Set<FetchMessagesService> unsavedServices = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Services of all folders by folder - used to save headers of folder changed outside of the service (see scheduleSyncStateSave(Folder)).
+     */
+    private static final Map<Folder, FetchMessagesService> services = new ConcurrentHashMap<>();
+
+    private String emailAddress;
+    private Folder folder;
+    private EmailTreeItem<String> emailTreeItem;
+    private SyncStateAccess syncStateAccess = new SyncStateAccess();
+
+    /**
+     * Pool of connections of the account - every page is fetched with borrowed connection.
+     */
+    private ConnectionPool connectionPool;
+
+    /**
+     * HIGHESTMODSEQ of the folder from the moment it was opened (0 if server doesn't support CONDSTORE).
+     * Every change of a message on the server increases it, so it marks moment to which folder is synchronized.
+     */
+    private long highestModSeq = 0;
+
+    /**
+     * UIDVALIDITY of the folder read when last page was fetched - it is saved together with headers.
+     */
+    private volatile long uidValidity;
+
+    /**
+     * Saving of headers scheduled after last fetched page.
+     */
+    private ScheduledFuture<?> scheduledSave;
+
+    /**
+     * Information if the folder was closed after messages were loaded, so they have to be synchronized when it is opened again.
+     */
+    private volatile boolean resyncNeeded = false;
+
+    /**
+     * Information if next run of the service should fetch next page (not only synchronize the folder) - used only in JavaFX thread.
+     */
+    private boolean pageRequested = false;
+
+    /**
+     * Number of messages which headers are fetched from server with one command.
+     * It is read from EmailAccount properties (fetchChunkSize).
+     */
+    private int fetchChunkSize;
+
+    /**
+     * Number of messages fetched in one run of the service.
+     * It is read from EmailAccount properties (pageSize).
+     */
+    private int pageSize;
+
+    /**
+     * Constructor of FetchMessagesService class.
+     * <hr></hr>
+     * It is created in FetchFolderService for every folder which holds messages.
+     * It sets itself as loader of next pages in passed emailTreeItem.
+     *
+     * @param emailAccount  - object of class EmailAccount. Its properties hold fetching configuration.
+     * @param folder        - object of the class Folder - folder in Store from which email messages are taken
+     * @param emailTreeItem - object of the class EmailTreeItem - folder in TreeView menu in the application to which email messages are added
+     */
+    public FetchMessagesService(EmailAccount emailAccount, Folder folder, EmailTreeItem<String> emailTreeItem) {
+        this.emailAddress = emailAccount.getAddress();
+        this.folder = folder;
+        this.connectionPool = ConnectionPool.getConnectionPool(folder);
+
+        // Pages of all folders of the account wait in one queue of the pool, instead of each starting its own thread.
+        this.setExecutor(connectionPool.getExecutor());
+        this.emailTreeItem = emailTreeItem;
+        this.fetchChunkSize = Integer.parseInt(emailAccount.getProperties().getProperty("fetchChunkSize"));
+        this.pageSize = Integer.parseInt(emailAccount.getProperties().getProperty("pageSize"));
+        services.put(folder, this);
+
+        // When user scrolls to the end of the list, EmailTreeItem calls this loader.
+        // Service can be restarted only from JavaFX thread (and scrolling happens in JavaFX thread).
+        // If previous page is still being fetched, nothing happens.
+        emailTreeItem.setNextPageLoader(() -> {
+            if (!this.isRunning()) {
+                pageRequested = true;
+                this.restart();
+            }
+        });
+
+        // Folder closed (by ConnectionPool or by server) misses changes made on the server until it is opened again.
+        // When it is opened again (by any service), loaded messages are synchronized - in JavaFX thread, where service can be restarted.
+        folder.addConnectionListener(new ConnectionAdapter() {
+            @Override
+            public void opened(ConnectionEvent e) {
+                if (resyncNeeded) {
+                    Platform.runLater(FetchMessagesService.this::startResync);
+                }
+            }
+
+            @Override
+            public void closed(ConnectionEvent e) {
+                markResyncNeeded();
+            }
+
+            @Override
+            public void disconnected(ConnectionEvent e) {
+                markResyncNeeded();
+            }
+        });
+    }
+
+    /**
+     * Method marks that loaded messages have to be synchronized when folder is opened again (if any messages were loaded yet).
+     */
+    private void markResyncNeeded() {
+        if (emailTreeItem.isFirstPageLoaded()) {
+            resyncNeeded = true;
+        }
+    }
+
+    /**
+     * Method starts synchronizing of loaded messages (without fetching next page) if folder is open and it is needed.
+     * If service is working right now, folder is synchronized after it ends (see succeeded()).
+     */
+    private void startResync() {
+        if (resyncNeeded && folder.isOpen() && !this.isRunning()) {
+            this.restart();
+        }
+    }
+
+    @Override
+    protected void succeeded() {
+        // Folder could be closed and opened again while page was fetched.
+        startResync();
+    }
+
+    // Pages are fetched with restart() method called by EmailTreeItem.loadFirstPage() and EmailTreeItem.loadNextPage().
+    // restart() method calls createTask() in which all background task code is.
+    @Override
+    protected Task<Void> createTask() {
+        boolean nextPage = pageRequested;
+        pageRequested = false;
+        return new Task<Void>() {
+            @Override
+            protected Void call() throws Exception {
+                // Folder is borrowed, so ConnectionPool doesn't close it while the page is fetched.
+                return connectionPool.withConnection(() -> {
+                    connectionPool.borrowFolder(folder);
+                    try {
+                        return fetchPage(nextPage);
+                    } finally {
+                        connectionPool.returnFolder(folder);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Method fetches one page of messages - first page from local file (if it is possible) or next page from server.
+     * If folder was closed after messages were loaded, loaded messages are synchronized first.
+     * @param nextPage - true if next page should be fetched, false if folder should be only synchronized
+     * @return Void - nothing
+     * @throws MessagingException
+     */
+    private Void fetchPage(boolean nextPage) throws MessagingException {
+        if (!emailTreeItem.isFirstPageLoaded()) {
+            FolderSyncState folderSyncState = syncStateAccess.load(emailAddress, folder.getFullName());
+            List<MailEvent> resyncEvents = folderSyncState != null
+                    ? openFolder(folderSyncState.getUidValidity(), folderSyncState.getHighestModSeq())
+                    : openFolder(0, 0);
+
+            // First page is taken from local file if it is possible. Otherwise, it is fetched from server from the newest message.
+            if (!synchronizeFolder(folderSyncState, resyncEvents)) {
+                // Messages displayed from local file (see LoadCachedAccountService) can't be synchronized - folder is fetched from the beginning.
+                emailTreeItem.clearEmailMessages();
+                fetchNextPage(true);
+            }
+            resyncNeeded = false;
+            emailTreeItem.setFirstPageLoaded(true);
+        } else {
+            // Changes since the moment when loaded messages were synchronized last time are fetched
+            // (HIGHESTMODSEQ is changed when folder is opened).
+            long savedHighestModSeq = highestModSeq;
+            List<MailEvent> resyncEvents = openFolder(uidValidity, savedHighestModSeq);
+            if (resyncNeeded) {
+                // Flag is cleared before synchronizing - if folder is closed again in the meantime, it is synchronized again.
+                resyncNeeded = false;
+                resynchronizeFolder(savedHighestModSeq, resyncEvents);
+            }
+            if (nextPage) {
+                fetchNextPage(false);
+            }
+        }
+
+        uidValidity = ((UIDFolder) folder).getUIDValidity();
+        scheduleSyncStateSave();
+        return null;
+    }
+
+    /**
+     * Method opens the folder on the server (if it isn't open yet).
+     * <hr></hr>
+     * If server supports QRESYNC and HIGHESTMODSEQ of the folder was saved, folder is opened with saved UIDVALIDITY and HIGHESTMODSEQ -
+     * then server sends (already in answer to opening command) only flags which changed and UIDs of deleted (vanished) messages
+     * since saved state. If server supports only CONDSTORE, folder is opened with CONDSTORE, so HIGHESTMODSEQ is known.
+     * <hr></hr>
+     * Folder has to be borrowed from ConnectionPool before (see createTask()).
+     *
+     * @param savedUidValidity   - UIDVALIDITY of the folder from saved state (0 if there is no saved state)
+     * @param savedHighestModSeq - HIGHESTMODSEQ of the folder from saved state (0 if it is unknown)
+     * @return List<MailEvent> - changes sent by server when folder was opened with QRESYNC, or null if it wasn't
+     * @throws MessagingException
+     */
+    private List<MailEvent> openFolder(long savedUidValidity, long savedHighestModSeq) throws MessagingException {
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+        IMAPStore imapStore = (IMAPStore) folder.getStore();
+        List<MailEvent> resyncEvents = null;
+
+        // Folder can be opened also by other services, so only one of them can open it at the time.
+        synchronized (folder) {
+            if (!folder.isOpen()) {
+                if (savedHighestModSeq > 0 && imapStore.hasCapability("QRESYNC")) {
+                    ResyncData resyncData = new ResyncData(savedUidValidity, savedHighestModSeq);
+                    resyncEvents = imapFolder.open(Folder.READ_WRITE, resyncData);
+                } else if (imapStore.hasCapability("CONDSTORE")) {
+                    imapFolder.open(Folder.READ_WRITE, ResyncData.CONDSTORE);
+                } else {
+                    folder.open(Folder.READ_WRITE);
+                }
+
+                // HIGHESTMODSEQ from the moment of opening - everything which changes later is reported to listeners or fetched later.
+                if (imapStore.hasCapability("CONDSTORE")) {
+                    highestModSeq = imapFolder.getHighestModSeq();
+                }
+            }
+        }
+        return resyncEvents;
+    }
+
+    /**
+     * Method loads first page of messages to emailTreeItem from state saved in local file and synchronizes it with server.
+     * <hr></hr>
+     * It fetches from server only:
+     * <ol>
+     *     <li>changes of flags of saved messages and which of them were deleted (see getSavedMessagesChanges()),</li>
+     *     <li>headers of messages with UIDs higher than the highest saved UID (new messages).</li>
+     * </ol>
+     * @param folderSyncState - state of the folder saved in local file (or null)
+     * @param resyncEvents    - changes sent by server when folder was opened with QRESYNC, or null
+     * @return boolean - true if folder was synchronized, false if saved state can't be used (and folder has to be fetched from the beginning)
+     * @throws MessagingException
+     */
+    private boolean synchronizeFolder(FolderSyncState folderSyncState, List<MailEvent> resyncEvents) throws MessagingException {
+        UIDFolder uidFolder = (UIDFolder) folder;
+
+        if (folderSyncState == null || folderSyncState.getHeaders().isEmpty()) {
+            return false;
+        }
+        // If UIDVALIDITY changed, saved UIDs point to different messages (or to nothing) - also contents of messages saved in the cache.
+        if (folderSyncState.getUidValidity() != uidFolder.getUIDValidity()) {
+            MessageCache.getMessageCache(folder).clearFolder(folder.getFullName());
+            return false;
+        }
+
+        // read / unread state of saved messages which changed, and UIDs of saved messages deleted from the server
+        Map<Long, Boolean> changedWasRead = new HashMap<>();
+        Set<Long> deletedUids = new HashSet<>();
+        List<Long> savedUids = new ArrayList<>();
+        for (MessageHeader messageHeader : folderSyncState.getHeaders()) {
+            savedUids.add(messageHeader.getUid());
+        }
+        getSavedMessagesChanges(folderSyncState.getLowestUid(), folderSyncState.getHighestUid(), folderSyncState.getHighestModSeq(),
+                savedUids, resyncEvents, changedWasRead, deletedUids);
+
+        List<EmailMessage> savedEmailMessages = new ArrayList<>();
+        for (MessageHeader messageHeader : folderSyncState.getHeaders()) {
+            if (!deletedUids.contains(messageHeader.getUid())) {
+                boolean wasRead = changedWasRead.getOrDefault(messageHeader.getUid(), messageHeader.getWasRead());
+                // Message (object from server side) is found by its UID only when it is needed (see EmailMessage.getMessage()).
+                savedEmailMessages.add(messageHeader.toEmailMessage(wasRead));
+            }
+        }
+        if (savedEmailMessages.isEmpty()) {
+            // All saved messages were deleted from the server.
+            return false;
+        }
+
+        // The oldest saved message has to exist on the server - next page starts below it.
+        EmailMessage oldestEmailMessage = savedEmailMessages.get(savedEmailMessages.size() - 1);
+        Message oldestMessage = uidFolder.getMessageByUID(oldestEmailMessage.getUid());
+        if (oldestMessage == null) {
+            return false;
+        }
+
+        List<EmailMessage> newEmailMessages = fetchNewMessages(folderSyncState.getHighestUid());
+        if (newEmailMessages == null) {
+            // Too many new messages to fetch them at once - folder is fetched from the newest messages, page by page
+            // (saved messages are fetched again when user scrolls to them).
+            return false;
+        }
+
+        // Messages loaded from local file (see LoadCachedAccountService) could still wait in MailboxStore.
+        emailTreeItem.awaitUpdates();
+        if (emailTreeItem.hasLoadedEmailMessages()) {
+            // Saved messages are already displayed - only changes are applied to them (by MailboxStore, in this order).
+            emailTreeItem.removeEmailMessages(deletedUids);
+            changedWasRead.forEach(emailTreeItem::updateWasRead);
+            emailTreeItem.addEmailMessagesToTop(newEmailMessages);
+        } else {
+            // Both lists are added to emailTreeItem by MailboxStore and displayed with next animation pulse.
+            emailTreeItem.addEmailMessages(newEmailMessages);
+            emailTreeItem.addEmailMessages(savedEmailMessages);
+        }
+        updateStatus();
+
+        emailTreeItem.setMoreMessages(oldestMessage.getMessageNumber() > 1);
+        return true;
+    }
+
+    /**
+     * Method synchronizes messages loaded to emailTreeItem with server after the folder was closed and opened again.
+     * <hr></hr>
+     * Like synchronizeFolder(), it fetches only changed flags and UIDs of deleted messages (between the lowest and the highest loaded UID),
+     * and headers of messages newer than the newest loaded one (at most pageSize - if there are more of them, or UIDVALIDITY changed,
+     * folder is fetched again from the newest message).
+     *
+     * @param savedHighestModSeq - HIGHESTMODSEQ from the moment when loaded messages were synchronized last time (0 if it is unknown)
+     * @param resyncEvents       - changes sent by server when folder was opened with QRESYNC, or null
+     * @throws MessagingException
+     */
+    private void resynchronizeFolder(long savedHighestModSeq, List<MailEvent> resyncEvents) throws MessagingException {
+        UIDFolder uidFolder = (UIDFolder) folder;
+
+        emailTreeItem.awaitUpdates();
+        List<EmailMessage> loadedEmailMessages = emailTreeItem.getLoadedEmailMessages();
+        if (uidFolder.getUIDValidity() != uidValidity || loadedEmailMessages.isEmpty()) {
+            if (uidFolder.getUIDValidity() != uidValidity) {
+                MessageCache.getMessageCache(folder).clearFolder(folder.getFullName());
+            }
+            emailTreeItem.clearEmailMessages();
+            fetchNextPage(true);
+            return;
+        }
+
+        List<Long> loadedUids = new ArrayList<>();
+        for (EmailMessage emailMessage : loadedEmailMessages) {
+            loadedUids.add(emailMessage.getUid());
+        }
+        long highestUid = loadedUids.get(0);
+        long lowestUid = loadedUids.get(loadedUids.size() - 1);
+
+        Map<Long, Boolean> changedWasRead = new HashMap<>();
+        Set<Long> deletedUids = new HashSet<>();
+        getSavedMessagesChanges(lowestUid, highestUid, savedHighestModSeq, loadedUids, resyncEvents, changedWasRead, deletedUids);
+
+        List<EmailMessage> newEmailMessages = fetchNewMessages(highestUid);
+        if (newEmailMessages == null) {
+            emailTreeItem.clearEmailMessages();
+            fetchNextPage(true);
+            return;
+        }
+
+        // Changes are applied by MailboxStore, in this order.
+        emailTreeItem.removeEmailMessages(deletedUids);
+        changedWasRead.forEach(emailTreeItem::updateWasRead);
+        emailTreeItem.addEmailMessagesToTop(newEmailMessages);
+        updateStatus();
+    }
+
+    /**
+     * Method sets numbers of messages in emailTreeItem to numbers of the open folder on the server, after changes
+     * found by synchronization were applied.
+     * <hr></hr>
+     * Applied changes (new, deleted, read / unread messages) change numbers of messages in emailTreeItem, but numbers
+     * set earlier from STATUS (see FolderUpdaterService) could already count them - so they are replaced with numbers
+     * from the server (it is applied by MailboxStore after the changes).
+     * @throws MessagingException
+     */
+    private void updateStatus() throws MessagingException {
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+        emailTreeItem.setStatus(imapFolder.getMessageCount(), imapFolder.getUnreadMessageCount(), imapFolder.getUIDNext());
+    }
+
+    /**
+     * Method fetches headers of messages newer than message with passed UID - but only if there are at most pageSize of them.
+     * <hr></hr>
+     * For UID range "highest+1:*" server returns at least the newest message, even if it is older - it is skipped.
+     * getMessagesByUID() downloads only UIDs, so headers are not downloaded when there are too many new messages.
+     *
+     * @param highestUid - UID of the newest loaded message
+     * @return List<EmailMessage> - new messages from the newest to the oldest, or null if there are more than pageSize of them
+     * @throws MessagingException
+     */
+    private List<EmailMessage> fetchNewMessages(long highestUid) throws MessagingException {
+        UIDFolder uidFolder = (UIDFolder) folder;
+
+        Message[] newMessages = uidFolder.getMessagesByUID(highestUid + 1, UIDFolder.LASTUID);
+        List<Message> newMessagesList = new ArrayList<>();
+        for (Message newMessage : newMessages) {
+            if (newMessage != null && uidFolder.getUID(newMessage) > highestUid) {
+                newMessagesList.add(newMessage);
+            }
+        }
+        if (newMessagesList.size() > pageSize) {
+            return null;
+        }
+
+        Message[] messagesToFetch = newMessagesList.toArray(new Message[0]);
+        folder.fetch(messagesToFetch, createFetchProfile());
+        List<EmailMessage> newEmailMessages = new ArrayList<>();
+        for (int i = messagesToFetch.length - 1; i >= 0; i--) {
+            newEmailMessages.add(emailTreeItem.createEmailMessage(messagesToFetch[i]));
+        }
+        // Fetched data is kept only by EmailMessages - open folder keeps Message objects without it.
+        MessageMemoryManager.releaseFetched(messagesToFetch);
+        return newEmailMessages;
+    }
+
+    /**
+     * Method finds which saved (or loaded) messages changed their flags (read / unread) and which were deleted from server since saved state.
+     * <hr></hr>
+     * Depending on what server supports:
+     * <ul>
+     *     <li>QRESYNC - changes were already sent by server when folder was opened (resyncEvents),</li>
+     *     <li>CONDSTORE - flags are fetched only for messages changed since saved HIGHESTMODSEQ, and only UIDs of the others,</li>
+     *     <li>none of them - flags of all saved messages are fetched.</li>
+     * </ul>
+     * @param lowestUid          - the lowest saved UID
+     * @param highestUid         - the highest saved UID
+     * @param savedHighestModSeq - HIGHESTMODSEQ from the moment of saved state (0 if it is unknown)
+     * @param savedUids          - UIDs of saved messages
+     * @param resyncEvents       - changes sent by server when folder was opened with QRESYNC, or null
+     * @param changedWasRead     - map to which read / unread state of messages is put (UID of message is the key)
+     * @param deletedUids        - set to which UIDs of deleted messages are added
+     * @throws MessagingException
+     */
+    private void getSavedMessagesChanges(long lowestUid, long highestUid, long savedHighestModSeq, List<Long> savedUids,
+                                         List<MailEvent> resyncEvents, Map<Long, Boolean> changedWasRead,
+                                         Set<Long> deletedUids) throws MessagingException {
+        IMAPFolder imapFolder = (IMAPFolder) folder;
+
+        if (resyncEvents != null) {
+            for (MailEvent mailEvent : resyncEvents) {
+                if (mailEvent instanceof MessageVanishedEvent messageVanishedEvent) {
+                    for (long uid : messageVanishedEvent.getUIDs()) {
+                        deletedUids.add(uid);
+                    }
+                } else if (mailEvent instanceof MessageChangedEvent messageChangedEvent) {
+                    Message message = messageChangedEvent.getMessage();
+                    changedWasRead.put(imapFolder.getUID(message), message.getFlags().contains(Flags.Flag.SEEN));
+                }
+            }
+            return;
+        }
+
+        Message[] savedMessages;
+        if (savedHighestModSeq > 0 && highestModSeq > 0) {
+            // Only messages which changed since saved HIGHESTMODSEQ are returned, with their flags.
+            Message[] changedMessages = imapFolder.getMessagesByUIDChangedSince(lowestUid, highestUid, savedHighestModSeq);
+            for (Message message : changedMessages) {
+                changedWasRead.put(imapFolder.getUID(message), message.getFlags().contains(Flags.Flag.SEEN));
+            }
+            // Without QRESYNC deleted messages are found by comparing UIDs - getMessagesByUID() downloads only UIDs.
+            savedMessages = imapFolder.getMessagesByUID(lowestUid, highestUid);
+        } else {
+            savedMessages = imapFolder.getMessagesByUID(lowestUid, highestUid);
+            FetchProfile flagsProfile = new FetchProfile();
+            flagsProfile.add(FetchProfile.Item.FLAGS);
+            folder.fetch(savedMessages, flagsProfile);
+            for (Message message : savedMessages) {
+                if (message != null) {
+                    changedWasRead.put(imapFolder.getUID(message), message.getFlags().contains(Flags.Flag.SEEN));
+                }
+            }
+        }
+
+        Set<Long> existingUids = new HashSet<>();
+        for (Message message : savedMessages) {
+            if (message != null) {
+                existingUids.add(imapFolder.getUID(message));
+            }
+        }
+        for (long savedUid : savedUids) {
+            if (!existingUids.contains(savedUid)) {
+                deletedUids.add(savedUid);
+            }
+        }
+        // Fetched flags are already in changedWasRead.
+        MessageMemoryManager.releaseFetched(savedMessages);
+    }
+
+    /**
+     * Method schedules saving of headers SYNC_STATE_SAVE_DELAY milliseconds from now. Previously scheduled saving is cancelled,
+     * so when many pages are fetched one after another, headers are saved only once.
+     */
+    private synchronized void scheduleSyncStateSave() {
+        if (scheduledSave != null) {
+            scheduledSave.cancel(false);
+        }
+        unsavedServices.add(this);
+        scheduledSave = syncStateSaver.schedule(this::saveSyncState, SYNC_STATE_SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method schedules saving of headers of passed folder - e.g. after hash of downloaded attachment was set in its message
+     * (see EmailDetailsController), so the attachment is taken from the cache also after restart of the application.
+     * <hr></hr>
+     * It can be called from any thread. Headers are saved only if folder was already synchronized with the server
+     * (otherwise they are saved after its first page is fetched).
+     * @param folder - object of the class Folder - folder in Store
+     */
+    public static void scheduleSyncStateSave(Folder folder) {
+        FetchMessagesService fetchMessagesService = services.get(folder);
+        if (fetchMessagesService != null && fetchMessagesService.uidValidity != 0) {
+            fetchMessagesService.scheduleSyncStateSave();
+        }
+    }
+
+    /**
+     * Method saves headers of all folders which weren't saved yet (their saving is still scheduled).
+     * <hr></hr>
+     * It is called in Launcher when the application is closed.
+     */
+    public static void saveSyncStates() {
+        for (FetchMessagesService fetchMessagesService : unsavedServices) {
+            fetchMessagesService.saveSyncState();
+        }
+    }
+
+    /**
+     * Method saves headers of all messages loaded to emailTreeItem to local file
+     * (together with UIDVALIDITY, the highest UID and HIGHESTMODSEQ).
+     * Only data already known is saved - nothing is sent to server.
+     */
+    private synchronized void saveSyncState() {
+        if (!unsavedServices.remove(this)) {
+            return;
+        }
+        List<MessageHeader> headers = new ArrayList<>();
+        long highestUid = 0;
+
+        // Snapshot contains all messages added by this service (also the ones still waiting to be displayed).
+        for (EmailMessage emailMessage : emailTreeItem.getLoadedEmailMessages()) {
+            headers.add(new MessageHeader(emailMessage));
+            highestUid = Math.max(highestUid, emailMessage.getUid());
+        }
+
+        FolderSyncState folderSyncState = new FolderSyncState(uidValidity, highestUid, highestModSeq, headers);
+        syncStateAccess.save(emailAddress, folder.getFullName(), folderSyncState);
+    }
+
+    /**
+     * Method fetches next page of messages (older than already loaded ones) to emailTreeItem.
+     * <hr></hr>
+     * Messages are fetched in chunks (fetchChunkSize messages in a chunk), from the newest to the oldest.
+     * Headers of the whole chunk are downloaded with one FETCH command (see createFetchProfile()),
+     * so EmailTreeItem can create EmailMessages without asking server about every single message.
+     * <hr></hr>
+     * Page starts right below the oldest loaded message. It is found on the server by its UID (see findOldestLoadedMessage()),
+     * and next chunks start below the oldest message of previous chunk - javax.mail updates numbers of fetched messages
+     * when other messages are deleted, so no message is skipped or fetched twice.
+     *
+     * @param fromNewest - true if page should start from the newest message in the folder (nothing is loaded yet)
+     * @throws MessagingException
+     */
+    private void fetchNextPage(boolean fromNewest) throws MessagingException {
+        Message oldestMessage = fromNewest ? null : findOldestLoadedMessage();
+        FetchProfile fetchProfile = createFetchProfile();
+
+        int fetchedCount = 0;
+        while (fetchedCount < pageSize) {
+            // chunkEnd and chunkStart are message numbers (1 is the oldest message in the folder)
+            int chunkEnd = oldestMessage == null ? folder.getMessageCount() : oldestMessage.getMessageNumber() - 1;
+            if (chunkEnd < 1) {
+                break;
+            }
+            int chunkStart = Math.max(1, chunkEnd - Math.min(fetchChunkSize, pageSize - fetchedCount) + 1);
+
+            // getMessages() only creates "empty" Message objects - it doesn't download anything.
+            Message[] messages = folder.getMessages(chunkStart, chunkEnd);
+
+            // fetch() downloads items from the profile for all messages in the chunk at once.
+            folder.fetch(messages, fetchProfile);
+
+            // Newest message is at the end of the chunk, and it should be on top of the list.
+            // Whole chunk is added to emailTreeItem at once (by MailboxStore, and displayed with next animation pulse).
+            List<EmailMessage> emailMessages = new ArrayList<>();
+            for (int i = messages.length - 1; i >= 0; i--) {
+                emailMessages.add(emailTreeItem.createEmailMessage(messages[i]));
+            }
+            emailTreeItem.addEmailMessages(emailMessages);
+
+            // Fetched data is kept only by EmailMessages - open folder keeps Message objects without it.
+            MessageMemoryManager.releaseFetched(messages);
+
+            fetchedCount += messages.length;
+            oldestMessage = messages[0];
+        }
+        emailTreeItem.setMoreMessages(oldestMessage != null && oldestMessage.getMessageNumber() > 1);
+    }
+
+    /**
+     * Method finds on the server the oldest loaded message (by its UID). If it was deleted, the next older loaded message is taken.
+     * getMessageByUID() downloads only UID and current number of the message.
+     * @return Message - the oldest loaded message which still exists on the server, or null if there is no such message
+     * @throws MessagingException
+     */
+    private Message findOldestLoadedMessage() throws MessagingException {
+        UIDFolder uidFolder = (UIDFolder) folder;
+
+        // Snapshot contains all messages added by this service (also the ones still waiting to be displayed).
+        emailTreeItem.awaitUpdates();
+        List<EmailMessage> loadedEmailMessages = emailTreeItem.getLoadedEmailMessages();
+        for (int i = loadedEmailMessages.size() - 1; i >= 0; i--) {
+            Message message = uidFolder.getMessageByUID(loadedEmailMessages.get(i).getUid());
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method creates FetchProfile - list of items which are downloaded from server for many messages with one command.
+     * <hr></hr>
+     * ENVELOPE contains subject, sender, recipients and send date (in IMAP it also downloads size of the message),
+     * FLAGS contains information if message was read, SIZE contains size of the message and UID is identifier of the message in the folder.
+     * CONTENT_INFO (BODYSTRUCTURE in IMAP) contains structure of the message - types, sizes and names of its parts, so attachments
+     * are known without downloading content of the message.
+     * These are all data used by EmailTreeItem to create EmailMessage.
+     *
+     * @return FetchProfile - profile used in folder.fetch() method.
+     */
+    public static FetchProfile createFetchProfile() {
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.add(FetchProfile.Item.ENVELOPE);
+        fetchProfile.add(FetchProfile.Item.FLAGS);
+        fetchProfile.add(FetchProfile.Item.SIZE);
+        fetchProfile.add(FetchProfile.Item.CONTENT_INFO);
+        fetchProfile.add(UIDFolder.FetchProfileItem.UID);
+        return fetchProfile;
+    }
+}
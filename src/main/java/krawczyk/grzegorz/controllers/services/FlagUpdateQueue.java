@@ -0,0 +1,333 @@
+package krawczyk.grzegorz.controllers.services;
+
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.UIDSet;
+import krawczyk.grzegorz.models.EmailMessage;
+import krawczyk.grzegorz.models.EmailTreeItem;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class changes flags of messages (read / unread, deleted) on the server in background, so user doesn't wait for the server.
+ * <hr></hr>
+ * Change is applied to EmailMessage and to numbers of messages in EmailTreeItem right away (it is sent to MailboxStore),
+ * and it is only queued for the server. Every FLUSH_INTERVAL milliseconds queued changes are sent - changes of one folder
+ * are grouped, so every group (flag and its value) is sent with one UID STORE command with ranges of UIDs (e.g. "1:50,60").
+ * If the same message is changed again before changes are sent (e.g. marked unread and then read), only the last change is sent,
+ * and if it restores original state of the message, nothing is sent.
+ * <hr></hr>
+ * If sending fails, changes are sent again (at most MAX_ATTEMPTS times). Then they are rolled back in the application.
+ */
+public class FlagUpdateQueue {
+
+    private static final long FLUSH_INTERVAL = 500;
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * Maximal number of UID ranges in one command - servers limit length of command line.
+     */
+    private static final int MAX_RANGES_PER_COMMAND = 500;
+
+    /**
+     * Change of one flag of one message.
+     */
+    private static class FlagUpdate {
+        private final EmailMessage emailMessage;
+        private final Flags.Flag flag;
+        private final boolean originalValue;
+        private boolean value;
+        private int attempts = 0;
+
+        private FlagUpdate(EmailMessage emailMessage, Flags.Flag flag, boolean value, boolean originalValue) {
+            this.emailMessage = emailMessage;
+            this.flag = flag;
+            this.value = value;
+            this.originalValue = originalValue;
+        }
+    }
+
+    /**
+     * Identifier of flag of the message in its folder - changes with the same key are coalesced.
+     */
+    private record UpdateKey(long uid, Flags.Flag flag) {
+    }
+
+    /**
+     * Queued changes by folder (EmailTreeItem) - they are changed only in synchronized methods.
+     */
+    private Map<EmailTreeItem<String>, Map<UpdateKey, FlagUpdate>> pendingUpdates = new LinkedHashMap<>();
+
+    /**
+     * Changes which are being sent right now by flush() - they are read (only in synchronized methods) to know state
+     * of the message requested last time (see enqueueWasRead()).
+     */
+    private Map<EmailTreeItem<String>, Map<UpdateKey, FlagUpdate>> sendingUpdates = new LinkedHashMap<>();
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "flag-updates");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructor of FlagUpdateQueue class. It starts sending queued changes every FLUSH_INTERVAL milliseconds.
+     */
+    public FlagUpdateQueue() {
+        executor.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Method sets the message read or not read - in the application right away, and on the server in background.
+     * <hr></hr>
+     * It has to be called in JavaFX thread.
+     * @param emailTreeItem - folder of the message
+     * @param emailMessage  - email message
+     * @param wasRead       - true if the message is read now, false if it isn't
+     */
+    public void setWasRead(EmailTreeItem<String> emailTreeItem, EmailMessage emailMessage, boolean wasRead) {
+        if (enqueueWasRead(emailTreeItem, emailMessage, wasRead)) {
+            emailTreeItem.updateWasRead(emailMessage.getUid(), wasRead);
+        }
+    }
+
+    /**
+     * Method sets messages read or not read - in the application right away, and on the server in background.
+     * <hr></hr>
+     * It has to be called in JavaFX thread. Rows of Email Table View are refreshed with next animation pulse.
+     * @param emailTreeItem - folder of the messages
+     * @param emailMessages - email messages
+     * @param wasRead       - true if the messages are read now, false if they aren't
+     */
+    public void setWasRead(EmailTreeItem<String> emailTreeItem, List<EmailMessage> emailMessages, boolean wasRead) {
+        for (EmailMessage emailMessage : emailMessages) {
+            setWasRead(emailTreeItem, emailMessage, wasRead);
+        }
+    }
+
+    /**
+     * Method marks messages as deleted - it removes them from the application right away (Email Table View is changed once),
+     * and sets them deleted on the server in background.
+     * <hr></hr>
+     * It has to be called in JavaFX thread.
+     * @param emailTreeItem - folder of the messages
+     * @param emailMessages - email messages
+     */
+    public void delete(EmailTreeItem<String> emailTreeItem, List<EmailMessage> emailMessages) {
+        List<Long> uids = new ArrayList<>();
+        for (EmailMessage emailMessage : emailMessages) {
+            uids.add(emailMessage.getUid());
+            enqueue(emailTreeItem, emailMessage, Flags.Flag.DELETED, true, false);
+        }
+        emailTreeItem.removeEmailMessages(uids);
+    }
+
+    /**
+     * Method queues change of read / unread state of the message - only if it differs from state requested last time.
+     * <hr></hr>
+     * State requested last time is taken from queued change of the message, or from its change which is being sent right now.
+     * EmailMessage is changed later (by MailboxStore), so it is used only if the message has no such change -
+     * otherwise quick read / unread / read changes could be compared with out of date state and lost.
+     * @param emailTreeItem - folder of the message
+     * @param emailMessage  - email message
+     * @param wasRead       - true if the message is read now, false if it isn't
+     * @return boolean - true if state of the message changed (and it has to be changed in the application)
+     */
+    private synchronized boolean enqueueWasRead(EmailTreeItem<String> emailTreeItem, EmailMessage emailMessage, boolean wasRead) {
+        UpdateKey key = new UpdateKey(emailMessage.getUid(), Flags.Flag.SEEN);
+        FlagUpdate queuedUpdate = pendingUpdates.getOrDefault(emailTreeItem, Map.of()).get(key);
+        FlagUpdate sentUpdate = sendingUpdates.getOrDefault(emailTreeItem, Map.of()).get(key);
+        boolean requestedWasRead = queuedUpdate != null ? queuedUpdate.value
+                : sentUpdate != null ? sentUpdate.value : emailMessage.getWasRead();
+        if (requestedWasRead == wasRead) {
+            return false;
+        }
+        enqueue(emailTreeItem, emailMessage, Flags.Flag.SEEN, wasRead, requestedWasRead);
+        return true;
+    }
+
+    private synchronized void enqueue(EmailTreeItem<String> emailTreeItem, EmailMessage emailMessage, Flags.Flag flag, boolean value, boolean originalValue) {
+        Map<UpdateKey, FlagUpdate> folderUpdates = pendingUpdates.computeIfAbsent(emailTreeItem, key -> new LinkedHashMap<>());
+        UpdateKey key = new UpdateKey(emailMessage.getUid(), flag);
+        FlagUpdate flagUpdate = folderUpdates.get(key);
+        if (flagUpdate == null) {
+            folderUpdates.put(key, new FlagUpdate(emailMessage, flag, value, originalValue));
+        } else if (flagUpdate.originalValue == value) {
+            // Message is back in its original state - nothing has to be sent.
+            folderUpdates.remove(key);
+        } else {
+            flagUpdate.value = value;
+        }
+    }
+
+    /**
+     * Method takes all queued changes and sends them (folder by folder). It is called by executor every FLUSH_INTERVAL milliseconds.
+     * Changes can be queued again while they are sent - they are sent with the next flush.
+     */
+    private void flush() {
+        Map<EmailTreeItem<String>, Map<UpdateKey, FlagUpdate>> updates;
+        synchronized (this) {
+            if (pendingUpdates.isEmpty()) {
+                return;
+            }
+            updates = pendingUpdates;
+            pendingUpdates = new LinkedHashMap<>();
+            sendingUpdates = updates;
+        }
+        try {
+            sendAll(updates);
+        } finally {
+            synchronized (this) {
+                sendingUpdates = new LinkedHashMap<>();
+            }
+        }
+    }
+
+    /**
+     * Method sends changes taken by flush() - folder by folder.
+     * @param updates - changes by folder
+     */
+    private void sendAll(Map<EmailTreeItem<String>, Map<UpdateKey, FlagUpdate>> updates) {
+        for (Map.Entry<EmailTreeItem<String>, Map<UpdateKey, FlagUpdate>> entry : updates.entrySet()) {
+            List<FlagUpdate> folderUpdates = new ArrayList<>(entry.getValue().values());
+            if (folderUpdates.isEmpty()) {
+                continue;
+            }
+
+            // Account loaded from local file can be not connected yet - changes wait until it is connected.
+            Folder folder = entry.getKey().getFolder();
+            if (folder == null || ConnectionPool.getConnectionPool(folder) == null) {
+                retryOrRollBack(entry.getKey(), folderUpdates, false);
+                continue;
+            }
+
+            try {
+                sendUpdates(folder, folderUpdates);
+            } catch (Exception e) {
+                e.printStackTrace();
+                retryOrRollBack(entry.getKey(), folderUpdates, true);
+            }
+        }
+    }
+
+    /**
+     * Method sends changes of one folder - one UID STORE command for every flag and its value.
+     * @param folder        - folder on the server
+     * @param folderUpdates - changes of messages of the folder
+     * @throws Exception
+     */
+    private void sendUpdates(Folder folder, List<FlagUpdate> folderUpdates) throws Exception {
+        // Changes with the same flag and value are sent together.
+        Map<List<Object>, List<Long>> uidsByFlagAndValue = new LinkedHashMap<>();
+        for (FlagUpdate flagUpdate : folderUpdates) {
+            uidsByFlagAndValue.computeIfAbsent(List.of(flagUpdate.flag, flagUpdate.value), key -> new ArrayList<>())
+                    .add(flagUpdate.emailMessage.getUid());
+        }
+
+        ConnectionPool connectionPool = ConnectionPool.getConnectionPool(folder);
+        connectionPool.withFolder(folder, () -> {
+            for (Map.Entry<List<Object>, List<Long>> group : uidsByFlagAndValue.entrySet()) {
+                long[] uids = group.getValue().stream().mapToLong(Long::longValue).toArray();
+                storeFlags((IMAPFolder) folder, uids, (Flags.Flag) group.getKey().get(0), (Boolean) group.getKey().get(1));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Method queues failed changes again, or rolls them back in the application if they failed MAX_ATTEMPTS times.
+     * Change isn't queued again if the same flag of the message was changed in the meantime (newer change will be sent).
+     * @param emailTreeItem - folder of the messages
+     * @param folderUpdates - failed changes
+     * @param failed        - true if sending failed, false if changes couldn't be sent yet (then attempts are not counted)
+     */
+    private void retryOrRollBack(EmailTreeItem<String> emailTreeItem, List<FlagUpdate> folderUpdates, boolean failed) {
+        List<FlagUpdate> failedUpdates = new ArrayList<>();
+        synchronized (this) {
+            Map<UpdateKey, FlagUpdate> queuedUpdates = pendingUpdates.computeIfAbsent(emailTreeItem, key -> new LinkedHashMap<>());
+            for (FlagUpdate flagUpdate : folderUpdates) {
+                UpdateKey key = new UpdateKey(flagUpdate.emailMessage.getUid(), flagUpdate.flag);
+                if (queuedUpdates.containsKey(key)) {
+                    continue;
+                }
+                if (!failed || ++flagUpdate.attempts < MAX_ATTEMPTS) {
+                    queuedUpdates.put(key, flagUpdate);
+                } else {
+                    failedUpdates.add(flagUpdate);
+                }
+            }
+        }
+
+        if (!failedUpdates.isEmpty()) {
+            // Changes are rolled back by MailboxStore (in order with other changes of the folder).
+            for (FlagUpdate flagUpdate : failedUpdates) {
+                if (flagUpdate.flag == Flags.Flag.DELETED) {
+                    emailTreeItem.restoreEmailMessage(flagUpdate.emailMessage);
+                } else if (flagUpdate.flag == Flags.Flag.SEEN) {
+                    emailTreeItem.updateWasRead(flagUpdate.emailMessage.getUid(), flagUpdate.originalValue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Method sets or clears flag of messages with passed UIDs with one UID STORE command (UIDs are sent as ranges -
+     * only very long lists of not neighbouring UIDs are split into more commands, see toUidSets()).
+     * Server doesn't send new flags back (.SILENT) - they are already set in the application.
+     * @param folder - open folder on the server
+     * @param uids   - UIDs of the messages
+     * @param flag   - flag to be changed (SEEN or DELETED)
+     * @param value  - true to set the flag, false to clear it
+     * @throws MessagingException
+     */
+    public static void storeFlags(IMAPFolder folder, long[] uids, Flags.Flag flag, boolean value) throws MessagingException {
+        String flagName = flag == Flags.Flag.SEEN ? "\\Seen" : "\\Deleted";
+        for (String uidSet : toUidSets(uids)) {
+            String command = "UID STORE " + uidSet + (value ? " +FLAGS.SILENT (" : " -FLAGS.SILENT (") + flagName + ")";
+            folder.doCommand(protocol -> {
+                protocol.simpleCommand(command, null);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Method changes UIDs into IMAP UID sets with ranges of neighbouring UIDs (e.g. "1:50,60,70:72").
+     * Every set has at most MAX_RANGES_PER_COMMAND ranges, so usually there is only one set.
+     * @param uids - UIDs of messages (in any order)
+     * @return List<String> - UID sets to be sent in commands
+     */
+    public static List<String> toUidSets(long[] uids) {
+        long[] sortedUids = uids.clone();
+        Arrays.sort(sortedUids);
+        UIDSet[] uidSets = UIDSet.createUIDSets(sortedUids);
+
+        List<String> result = new ArrayList<>();
+        for (int start = 0; start < uidSets.length; start += MAX_RANGES_PER_COMMAND) {
+            result.add(UIDSet.toString(Arrays.copyOfRange(uidSets, start, Math.min(uidSets.length, start + MAX_RANGES_PER_COMMAND))));
+        }
+        return result;
+    }
+
+    /**
+     * Method sends all queued changes right away and stops sending changes - it is called when the application is closed.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,97 @@
+package krawczyk.grzegorz.controllers.services;
+
+import com.sun.mail.imap.IMAPFolder;
+import javafx.concurrent.Service;
+import javafx.concurrent.Task;
+
+import javax.mail.Folder;
+import javax.mail.MessagingException;
+
+/**
+ * Controller responsible for waiting for changes in one folder with IMAP IDLE command.
+ * <hr></hr>
+ * It extends Service class which is used to perform tasks on background Threads.
+ * Service class is part of JavaFX and it makes easier to manage multithreading code.
+ * <hr></hr>
+ * In IDLE mode server itself sends information about new and deleted messages as soon as they appear,
+ * so the application doesn't have to ask about them every few seconds.
+ * Every open folder has its own connection to the server, so IDLE blocks only connection of this folder.
+ * When server sends information, javax.mail calls MessageCountListener added to the folder in FetchFolderService.
+ * Folder is borrowed from pool of the account while it is in IDLE mode, so the pool doesn't close it (see ConnectionPool).
+ * <hr></hr>
+ * Service is started and stopped by FolderUpdaterService. It won't return anything (it returns Void object).
+ */
+public class FolderIdleService extends Service<Void> {
+
+    private IMAPFolder folder;
+
+    /**
+     * Information if folder should still be in IDLE mode. It is set to false by stopIdle() method.
+     */
+    private volatile boolean idling = true;
+
+    /**
+     * Information if background task already ended (IDLE was stopped, folder was closed or server doesn't support IDLE).
+     */
+    private volatile boolean finished = false;
+
+    /**
+     * Constructor of FolderIdleService class.
+     * @param folder - object of the class Folder - open folder in Store which should be watched
+     */
+    public FolderIdleService(Folder folder) {
+        this.folder = (IMAPFolder) folder;
+    }
+
+    @Override
+    protected Task<Void> createTask() {
+        return new Task<Void>() {
+            @Override
+            protected Void call() {
+                ConnectionPool connectionPool = ConnectionPool.getConnectionPool(folder);
+                if (!connectionPool.borrowFolderIfOpen(folder)) {
+                    finished = true;
+                    return null;
+                }
+                try {
+                    // idle() returns when server sent something or when other thread used the folder
+                    // (e.g. fetched messages or checked number of messages) - then folder goes back to IDLE mode.
+                    while (idling && folder.isOpen()) {
+                        folder.idle();
+                    }
+                } catch (MessagingException e) {
+                    // Folder was closed or server doesn't support IDLE - FolderUpdaterService will check folder again itself.
+                    e.printStackTrace();
+                } finally {
+                    connectionPool.returnFolder(folder);
+                    finished = true;
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Method ends IDLE mode of the folder.
+     * <hr></hr>
+     * IDLE can't be interrupted by interrupting the thread (it waits for data from server),
+     * so it sends cheap command (number of messages) with the folder - it makes javax.mail end IDLE,
+     * and then loop in background task ends.
+     */
+    public void stopIdle() {
+        idling = false;
+        try {
+            folder.getMessageCount();
+        } catch (MessagingException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method returns information if folder is (or should be) in IDLE mode.
+     * @return boolean - true if IDLE wasn't stopped and background task is still working
+     */
+    public boolean isIdling() {
+        return idling && !finished;
+    }
+}
@@ -1,60 +1,383 @@
 package krawczyk.grzegorz.controllers.services;
 
-import javafx.concurrent.Service;
-import javafx.concurrent.Task;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.Status;
+import krawczyk.grzegorz.models.EmailTreeItem;
 
 import javax.mail.Folder;
-import java.util.List;
+import javax.mail.MessagingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Controller responsible for connecting with email server and updating data about new and deleted emails.
  * <hr></hr>
  * It is meant to start when the application starts and work all the time.
- * It will always call and serach for new message added or message removed events on the connected servers.
+ * <hr></hr>
+ * Folders which matter the most (INBOX and folder selected by user) are watched with IMAP IDLE (see FolderIdleService) -
+ * server itself informs about new and deleted messages as soon as they appear.
+ * <hr></hr>
+ * All other folders are checked by scheduler (ScheduledExecutorService), every folder with its own interval:
+ * <ul>
+ *     <li>open folders - number of messages is checked (new and deleted messages are reported to MessageCountListener),</li>
+ *     <li>closed folders - STATUS command refreshes numbers of all and unread messages in Email Tree View.</li>
+ * </ul>
+ * Interval depends on priority of the folder (see FolderPriority) and it is doubled every time nothing changed in the folder
+ * (up to maximum interval of the priority). Random jitter is added, so folders are not checked all at the same moment.
+ * Checks are paused while main window of the application is minimized.
+ * Every check borrows connection from pool of the account (see ConnectionPool) - if none is free, check is done next time.
  */
-public class FolderUpdaterService extends Service {
+public class FolderUpdaterService {
+
+    /**
+     * Time after which folders in IDLE mode are woken up (10 minutes).
+     * Servers close connections which are in IDLE mode for too long (usually 30 minutes).
+     */
+    private static final long IDLE_KEEP_ALIVE_INTERVAL = 10 * 60 * 1000;
+
+    /**
+     * Part of interval which is randomly added to or subtracted from it (10%).
+     */
+    private static final double JITTER = 0.1;
+
+    private static final String[] STATUS_ITEMS = {"MESSAGES", "UNSEEN", "UIDNEXT"};
+
+    /**
+     * Priorities of folders. Each priority has base interval (used after a change in the folder)
+     * and maximum interval (used when nothing changes in the folder for a long time), in milliseconds.
+     */
+    private enum FolderPriority {
+        // INBOX and folder selected by user
+        HIGH(5 * 1000, 60 * 1000),
+        // all other folders
+        NORMAL(60 * 1000, 10 * 60 * 1000),
+        // archive, spam and trash folders
+        LOW(5 * 60 * 1000, 30 * 60 * 1000);
+
+        private final long baseInterval;
+        private final long maxInterval;
+
+        FolderPriority(long baseInterval, long maxInterval) {
+            this.baseInterval = baseInterval;
+            this.maxInterval = maxInterval;
+        }
+    }
+
+    /**
+     * Information about checking of one folder.
+     */
+    private static class FolderSchedule {
+        private final Folder folder;
+        private final EmailTreeItem<String> emailTreeItem;
+        private long interval;
+        private int lastMessageCount = -1;
+        private long lastUidNext = -1;
+        private int lastUnreadCount = -1;
+        private ScheduledFuture<?> nextCheck;
+
+        private FolderSchedule(Folder folder, EmailTreeItem<String> emailTreeItem) {
+            this.folder = folder;
+            this.emailTreeItem = emailTreeItem;
+        }
+    }
+
+    /**
+     * Scheduler which checks folders in background threads.
+     * Its threads are daemon threads, so they don't keep the application working after main window is closed.
+     */
+    private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "folder-updater");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * All folders (from server side) watched by the service.
+     */
+    private Map<Folder, FolderSchedule> schedules = new ConcurrentHashMap<>();
+
+    /**
+     * Folders which are in IDLE mode and services which keep them in this mode.
+     */
+    private Map<Folder, FolderIdleService> idleServices = new ConcurrentHashMap<>();
+
+    /**
+     * Folder selected by user in Email Tree View (it is set by EmailManager).
+     */
+    private volatile Folder selectedFolder;
+
+    /**
+     * Information if checks are paused (main window is minimized).
+     */
+    private volatile boolean paused = false;
 
     /**
-     * List of all Folders in the application.
-     * Folders are folders in email Store (from server side)
+     * Method starts background work of the service.
+     * <hr></hr>
+     * It is called in EmailManager constructor.
+     * Folders added later with addFolder() method are scheduled right away.
      */
-    private List<Folder> folderList;
+    public void start() {
+        // Every second it checks which folders should be in IDLE mode (it doesn't send anything to server).
+        scheduler.scheduleWithFixedDelay(this::updateIdleFoldersSafely, 1, 1, TimeUnit.SECONDS);
+        scheduler.scheduleWithFixedDelay(this::keepIdleFoldersAlive, IDLE_KEEP_ALIVE_INTERVAL, IDLE_KEEP_ALIVE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
 
     /**
-     * constructor of class FolderUpdaterService.
+     * Method adds folder which should be watched by the service. First check of the folder is done right away.
      * <hr></hr>
-     * It is created in EmailManager constructor.
+     * It is called in FetchFolderService for every folder which holds messages.
      *
-     * @param folderList - list of all active folders in the application.
-     *                    Folders are folders in email Store (from provider side).
+     * @param folder        - object of the class Folder - folder in Store
+     * @param emailTreeItem - object of the class EmailTreeItem - folder in TreeView menu displaying number of messages
+     */
+    public void addFolder(Folder folder, EmailTreeItem<String> emailTreeItem) {
+        FolderSchedule folderSchedule = new FolderSchedule(folder, emailTreeItem);
+        folderSchedule.interval = getPriority(folder).baseInterval;
+        schedules.put(folder, folderSchedule);
+        schedule(folderSchedule, 0);
+    }
+
+    /**
+     * Method sets folder selected by user. Selected folder gets high priority and (if it is open) is watched in IDLE mode.
+     * <hr></hr>
+     * It is called by EmailManager when user selects folder in Email Tree View.
+     * @param selectedFolder - object of class Folder - folder in email Store
+     */
+    public void setSelectedFolder(Folder selectedFolder) {
+        this.selectedFolder = selectedFolder;
+
+        // Selected folder is checked right away and its interval starts from the beginning.
+        FolderSchedule folderSchedule = schedules.get(selectedFolder);
+        if (folderSchedule != null) {
+            folderSchedule.interval = FolderPriority.HIGH.baseInterval;
+            schedule(folderSchedule, 0);
+        }
+        scheduler.execute(this::updateIdleFoldersSafely);
+    }
+
+    /**
+     * Method checks folder right away (e.g. messages were moved to it) and its interval starts from the beginning,
+     * so numbers of its messages in Email Tree View are updated.
+     * <hr></hr>
+     * It is called by EmailManager after messages were moved to the folder.
+     * @param folder - object of class Folder - folder in email Store
+     */
+    public void checkFolderNow(Folder folder) {
+        FolderSchedule folderSchedule = schedules.get(folder);
+        if (folderSchedule != null) {
+            folderSchedule.interval = getPriority(folder).baseInterval;
+            schedule(folderSchedule, 0);
+        }
+    }
+
+    /**
+     * Method pauses or resumes checking of folders. Folders in IDLE mode are still informed about changes by server.
+     * <hr></hr>
+     * It is called by ViewFactory when main window of the application is minimized or restored.
+     * After resume all folders are checked right away (with small random delay).
+     * @param paused - true to pause checks, false to resume them
+     */
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+
+        if (!paused) {
+            for (FolderSchedule folderSchedule : schedules.values()) {
+                schedule(folderSchedule, withJitter(1000));
+            }
+        }
+    }
+
+    /**
+     * Method schedules next check of the folder (and cancels already scheduled one).
+     * @param folderSchedule - information about checking of the folder
+     * @param delay          - time to the check in milliseconds
      */
-    public FolderUpdaterService(List<Folder> folderList) {
-        this.folderList = folderList;
+    private synchronized void schedule(FolderSchedule folderSchedule, long delay) {
+        if (folderSchedule.nextCheck != null) {
+            folderSchedule.nextCheck.cancel(false);
+        }
+        folderSchedule.nextCheck = scheduler.schedule(() -> checkFolder(folderSchedule), delay, TimeUnit.MILLISECONDS);
     }
 
-    @Override
-    protected Task createTask() {
-        return new Task() {
-            @Override
-            protected Object call() throws Exception {
-                // forever (in infinite loop) - this thread works all the time, as long as the application works.
-                for (; ; ) {
+    /**
+     * Method checks one folder and schedules its next check.
+     * <hr></hr>
+     * If something changed in the folder, interval goes back to base interval of folder priority,
+     * if nothing changed, interval is doubled (but not more than maximum interval of the priority).
+     * @param folderSchedule - information about checking of the folder
+     */
+    private void checkFolder(FolderSchedule folderSchedule) {
+        FolderPriority priority = getPriority(folderSchedule.folder);
+
+        // Paused folders and folders in IDLE mode are not checked, but they are still scheduled.
+        // If all connections of the account are busy (e.g. messages are being fetched), folder is checked next time.
+        ConnectionPool connectionPool = ConnectionPool.getConnectionPool(folderSchedule.folder);
+        if (!paused && !idleServices.containsKey(folderSchedule.folder) && connectionPool.tryBorrow()) {
+            try {
+                boolean changed;
+                // Open folder is borrowed, so the pool doesn't close it during the check.
+                if (connectionPool.borrowFolderIfOpen(folderSchedule.folder)) {
                     try {
-                        // it sleeps 5 seconds
-                        Thread.sleep(5000);
-
-                        // every 5 seconds for every folder in the application
-                        for (Folder folder : folderList) {
-                            if (folder.getType() != Folder.HOLDS_FOLDERS && folder.isOpen()) {
-                                // it checks number of messages in folder on server
-                                folder.getMessageCount();
-                            }
-                        }
-                    } catch (Exception e) {
-                        System.out.println(e.getStackTrace());
+                        changed = checkOpenFolder(folderSchedule);
+                    } finally {
+                        connectionPool.returnFolder(folderSchedule.folder);
                     }
+                } else {
+                    changed = checkClosedFolder(folderSchedule);
+                }
+
+                if (changed) {
+                    folderSchedule.interval = priority.baseInterval;
+                } else {
+                    folderSchedule.interval = Math.min(folderSchedule.interval * 2, priority.maxInterval);
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
+                // Errors (e.g. too many commands) are treated as "nothing changed" - next check is later.
+                folderSchedule.interval = Math.min(folderSchedule.interval * 2, priority.maxInterval);
+            } finally {
+                connectionPool.release();
+            }
+        }
+
+        // Folder could get higher priority (e.g. it was selected) - interval can't be longer than its maximum.
+        folderSchedule.interval = Math.min(folderSchedule.interval, priority.maxInterval);
+        schedule(folderSchedule, withJitter(folderSchedule.interval));
+    }
+
+    /**
+     * Method checks number of messages in open folder on server.
+     * If number changed, javax.mail informs MessageCountListener added to the folder in FetchFolderService.
+     * @param folderSchedule - information about checking of the folder
+     * @return boolean - true if number of messages changed since last check
+     * @throws MessagingException
+     */
+    private boolean checkOpenFolder(FolderSchedule folderSchedule) throws MessagingException {
+        int messageCount = folderSchedule.folder.getMessageCount();
+        boolean changed = messageCount != folderSchedule.lastMessageCount;
+        folderSchedule.lastMessageCount = messageCount;
+        return changed;
+    }
+
+    /**
+     * Method sends STATUS command for closed folder and updates numbers of messages in Email Tree View.
+     * <hr></hr>
+     * Folder doesn't have to be opened (and its messages don't have to be fetched) to display number of unread messages.
+     * STATUS returns number of messages (MESSAGES), number of unread messages (UNSEEN)
+     * and UID which next new message will get (UIDNEXT).
+     * @param folderSchedule - information about checking of the folder
+     * @return boolean - true if new message came to the folder or number of unread messages changed since last check
+     * @throws MessagingException
+     */
+    private boolean checkClosedFolder(FolderSchedule folderSchedule) throws MessagingException {
+        IMAPFolder imapFolder = (IMAPFolder) folderSchedule.folder;
+
+        // doCommand() sends command with connection of the folder (if it is open) or connection of the Store (if it is closed).
+        Status status = (Status) imapFolder.doCommand(protocol -> protocol.status(imapFolder.getFullName(), STATUS_ITEMS));
+
+        // Numbers of messages are changed by MailboxStore, and Email Tree View is updated in JavaFX thread.
+        folderSchedule.emailTreeItem.setStatus(status.total, status.unseen, status.uidnext);
+
+        boolean changed = status.uidnext != folderSchedule.lastUidNext || status.unseen != folderSchedule.lastUnreadCount;
+        folderSchedule.lastUidNext = status.uidnext;
+        folderSchedule.lastUnreadCount = status.unseen;
+        return changed;
+    }
+
+    /**
+     * Method returns priority of the folder based on its name and on folder selected by user.
+     * @param folder - object of class Folder - folder in email Store
+     * @return FolderPriority - priority of the folder
+     */
+    private FolderPriority getPriority(Folder folder) {
+        String name = folder.getName().toLowerCase();
+
+        if (folder == selectedFolder || name.equals("inbox")) {
+            return FolderPriority.HIGH;
+        } else if (name.contains("archiv") || name.contains("spam") || name.contains("junk")
+                || name.contains("trash") || name.contains("kosz")) {
+            return FolderPriority.LOW;
+        }
+        return FolderPriority.NORMAL;
+    }
+
+    /**
+     * Method returns passed interval changed randomly by up to JITTER part of it.
+     * @param interval - interval in milliseconds
+     * @return long - interval with jitter in milliseconds
+     */
+    private long withJitter(long interval) {
+        double jitter = ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+        return (long) (interval * (1 + jitter));
+    }
+
+    /**
+     * Method calls updateIdleFolders() and prints errors - scheduler stops repeating task which threw an exception.
+     */
+    private void updateIdleFoldersSafely() {
+        try {
+            updateIdleFolders();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Method starts IDLE mode for folders which should be in it and stops it for folders which shouldn't be in it anymore.
+     * <hr></hr>
+     * Folders which ended IDLE mode themselves (because of an error) are removed, so they are checked by scheduler.
+     * @throws MessagingException
+     */
+    private void updateIdleFolders() throws MessagingException {
+        idleServices.entrySet().removeIf(entry -> !entry.getValue().isIdling());
+
+        for (Folder folder : schedules.keySet()) {
+            boolean shouldIdle = shouldIdle(folder);
+            FolderIdleService folderIdleService = idleServices.get(folder);
+
+            if (shouldIdle && folderIdleService == null) {
+                folderIdleService = new FolderIdleService(folder);
+                idleServices.put(folder, folderIdleService);
+                folderIdleService.start();
+            } else if (!shouldIdle && folderIdleService != null) {
+                idleServices.remove(folder);
+                folderIdleService.stopIdle();
+            }
+        }
+    }
+
+    /**
+     * Method checks if folder should be watched in IDLE mode.
+     * Only open INBOX and open folder selected by user are watched, and only if server supports IDLE.
+     * @param folder - object of class Folder - folder in email Store
+     * @return boolean - true if folder should be in IDLE mode
+     * @throws MessagingException
+     */
+    private boolean shouldIdle(Folder folder) throws MessagingException {
+        if (!folder.isOpen() || getPriority(folder) != FolderPriority.HIGH) {
+            return false;
+        }
+        return ((IMAPStore) folder.getStore()).hasCapability("IDLE");
+    }
+
+    /**
+     * Method wakes up folders which are in IDLE mode, so server doesn't close their connections.
+     * Checking number of messages ends IDLE for a moment, and then FolderIdleService starts it again.
+     */
+    private void keepIdleFoldersAlive() {
+        for (Folder folder : idleServices.keySet()) {
+            try {
+                folder.getMessageCount();
+            } catch (MessagingException e) {
+                e.printStackTrace();
             }
-        };
+        }
     }
 }
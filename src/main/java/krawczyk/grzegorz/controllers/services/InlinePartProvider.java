@@ -0,0 +1,228 @@
+package krawczyk.grzegorz.controllers.services;
+
+import krawczyk.grzegorz.controllers.persistence.MessageCache;
+import krawczyk.grzegorz.models.EmailMessage;
+
+import javax.mail.Folder;
+import javax.mail.Message;
+import javax.mail.MessageRemovedException;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.internet.MimePart;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.URLStreamHandler;
+import java.net.spi.URLStreamHandlerProvider;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class resolves inline parts of email messages (e.g. images in HTML content referenced as "cid:...") for Web View.
+ * <hr></hr>
+ * MessageRendererService changes "cid:" references into URLs with "inlinepart" protocol (see toUrl())
+ * and marks images as lazy loaded, so Web View loads only images which are scrolled into view.
+ * When Web View loads such URL, the part is downloaded from server (only then - parts which are never loaded are never downloaded)
+ * and saved in local cache of the account (see MessageCache), so next time it is read from there.
+ * <hr></hr>
+ * Java finds this class by ServiceLoader (file META-INF/services/java.net.spi.URLStreamHandlerProvider),
+ * so "inlinepart" URLs can be opened in every part of the application.
+ */
+public class InlinePartProvider extends URLStreamHandlerProvider {
+
+    public static final String PROTOCOL = "inlinepart";
+
+    /**
+     * Maximal number of messages whose inline parts can be resolved - older messages are not displayed anymore.
+     */
+    private static final int MAX_MESSAGES = 50;
+
+    /**
+     * Messages with inline parts by their numbers (host of URL) - from the least recently registered to the most recently registered.
+     */
+    private static final Map<String, EmailMessage> messages = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EmailMessage> eldest) {
+            return size() > MAX_MESSAGES;
+        }
+    };
+    private static long lastMessageNumber = 0;
+
+    /**
+     * Maximal number of remembered hashes of downloaded inline parts - part which is forgotten is found in the message
+     * and saved in MessageCache again (file with the same hash is not duplicated).
+     */
+    private static final int MAX_CONTENT_HASHES = 1000;
+
+    /**
+     * Hashes of downloaded inline parts (files in MessageCache) by account, folder, UID of the message and Content-ID of the part -
+     * from the least recently used to the most recently used.
+     */
+    private static final Map<String, String> contentHashes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CONTENT_HASHES;
+        }
+    };
+
+    @Override
+    public URLStreamHandler createURLStreamHandler(String protocol) {
+        if (!PROTOCOL.equals(protocol)) {
+            return null;
+        }
+        return new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL url) {
+                return new InlinePartConnection(url);
+            }
+        };
+    }
+
+    /**
+     * Method registers message whose content is displayed and returns prefix of URLs of its inline parts.
+     * @param emailMessage - email message
+     * @return String - prefix of URLs of inline parts of the message (Content-ID of the part is added to it)
+     */
+    public static synchronized String register(EmailMessage emailMessage) {
+        String messageNumber = Long.toString(++lastMessageNumber);
+        messages.put(messageNumber, emailMessage);
+        return PROTOCOL + "://" + messageNumber + "/";
+    }
+
+    /**
+     * Method returns URL of inline part with passed Content-ID.
+     * @param prefix    - prefix returned by register()
+     * @param contentId - Content-ID of the part (from "cid:" reference, without angle brackets)
+     * @return String - URL of the part
+     */
+    public static String toUrl(String prefix, String contentId) {
+        return prefix + URLEncoder.encode(contentId, StandardCharsets.UTF_8);
+    }
+
+    private static synchronized EmailMessage getMessage(String messageNumber) {
+        return messages.get(messageNumber);
+    }
+
+    private static synchronized String getContentHash(String key) {
+        return contentHashes.get(key);
+    }
+
+    private static synchronized void putContentHash(String key, String contentHash) {
+        contentHashes.put(key, contentHash);
+    }
+
+    /**
+     * Connection which reads inline part of the message - from local cache, or from server if it wasn't downloaded yet.
+     */
+    private static class InlinePartConnection extends URLConnection {
+
+        private EmailMessage emailMessage;
+        private String contentId;
+        private File file;
+        private String contentType;
+
+        private InlinePartConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (connected) {
+                return;
+            }
+            emailMessage = getMessage(url.getHost());
+            if (emailMessage == null) {
+                throw new FileNotFoundException(url.toString());
+            }
+            contentId = URLDecoder.decode(url.getPath().substring(1), StandardCharsets.UTF_8);
+
+            Folder folder = emailMessage.getFolder();
+            if (folder == null) {
+                // Message loaded from local file before the application connected to the server.
+                throw new FileNotFoundException(url.toString());
+            }
+            MessageCache messageCache = MessageCache.getMessageCache(folder);
+            String key = folder.getStore().getURLName() + "/" + folder.getFullName() + "/" + emailMessage.getUid() + "/" + contentId;
+            String contentHash = getContentHash(key);
+            if (contentHash != null) {
+                file = messageCache.getAttachment(contentHash);
+            }
+
+            if (file == null) {
+                // Part is downloaded with connection borrowed from pool of the account.
+                ConnectionPool connectionPool = ConnectionPool.getConnectionPool(folder);
+                try {
+                    contentHash = connectionPool.withFolder(folder, () -> {
+                        Message message = emailMessage.getMessage();
+                        Part part = findPart(message);
+                        if (part == null) {
+                            throw new FileNotFoundException(url.toString());
+                        }
+                        contentType = part.getContentType();
+                        try (InputStream inputStream = part.getInputStream()) {
+                            return messageCache.saveAttachment(inputStream);
+                        } finally {
+                            MessageMemoryManager.touch(message, emailMessage.getSize().getSize());
+                        }
+                    });
+                } catch (IOException e) {
+                    throw e;
+                } catch (MessageRemovedException e) {
+                    // Message was removed from the server (e.g. on other device) - part is missing, like part which isn't in the message.
+                    throw new FileNotFoundException(url.toString());
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                putContentHash(key, contentHash);
+                file = messageCache.getAttachment(contentHash);
+            }
+            connected = true;
+        }
+
+        /**
+         * Method recursively finds part with Content-ID of this connection. Only structure of the message is used.
+         * @param part - message or its part
+         * @return Part - part with the Content-ID, or null if there is no such part
+         * @throws MessagingException
+         * @throws IOException
+         */
+        private Part findPart(Part part) throws MessagingException, IOException {
+            if (part instanceof MimePart mimePart && mimePart.getContentID() != null
+                    && mimePart.getContentID().replaceAll("^<|>$", "").equals(contentId)) {
+                return part;
+            }
+            if (part.isMimeType("multipart/*")) {
+                Multipart multipart = (Multipart) part.getContent();
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    Part found = findPart(multipart.getBodyPart(i));
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            if (file == null) {
+                throw new FileNotFoundException(url.toString());
+            }
+            return new FileInputStream(file);
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType != null ? contentType.split(";")[0].trim().toLowerCase() : null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package krawczyk.grzegorz.controllers.services;
+
+import javafx.concurrent.Service;
+import javafx.concurrent.Task;
+import krawczyk.grzegorz.controllers.persistence.CachedFolder;
+import krawczyk.grzegorz.controllers.persistence.FolderSyncState;
+import krawczyk.grzegorz.controllers.persistence.MessageHeader;
+import krawczyk.grzegorz.controllers.persistence.SyncStateAccess;
+import krawczyk.grzegorz.models.EmailMessage;
+import krawczyk.grzegorz.models.EmailTreeItem;
+import krawczyk.grzegorz.views.IconResolver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Controller responsible for loading email account (its folders and headers of their messages) from local files.
+ * <hr></hr>
+ * It extends Service class which is used to perform tasks on background Threads.
+ * Service class is part of JavaFX and it makes easier to manage multithreading code.
+ * <hr></hr>
+ * It is started in Launcher together with LoginService, so main window displays folders and messages right after start,
+ * without waiting for the server. When the application is connected, FetchFolderService and FetchMessagesService
+ * use EmailTreeItems created here and synchronize them with the server.
+ * <hr></hr>
+ * Only tree of folders and headers of INBOX are loaded at start - headers of other folders are read from their files
+ * when user selects the folder (if it isn't connected to the server by then - connected folder reads its file itself).
+ * So start of the application doesn't read headers of all folders of the account.
+ * <hr></hr>
+ * Service will return EmailTreeItem of the account (with all its folders as children), which is not added to Email Tree View yet.
+ */
+public class LoadCachedAccountService extends Service<EmailTreeItem<String>> {
+
+    /**
+     * Executor which reads saved headers of selected folders. Its thread is daemon thread,
+     * so it doesn't keep the application working after main window is closed.
+     */
+    private static final ExecutorService savedHeadersLoader = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "saved-headers-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private String emailAddress;
+    private SyncStateAccess syncStateAccess = new SyncStateAccess();
+    private IconResolver iconResolver = new IconResolver();
+
+    /**
+     * Constructor of LoadCachedAccountService class.
+     * @param emailAddress - email address of account to load
+     */
+    public LoadCachedAccountService(String emailAddress) {
+        this.emailAddress = emailAddress;
+    }
+
+    @Override
+    protected Task<EmailTreeItem<String>> createTask() {
+        return new Task<EmailTreeItem<String>>() {
+            @Override
+            protected EmailTreeItem<String> call() {
+                EmailTreeItem<String> treeItem = new EmailTreeItem<>(emailAddress);
+                treeItem.setGraphic(iconResolver.getIconForFolder(emailAddress));
+                treeItem.setExpanded(true);
+
+                handleCachedFolders(syncStateAccess.loadFolderTree(emailAddress), treeItem);
+                return treeItem;
+            }
+        };
+    }
+
+    /**
+     * Method creates EmailTreeItem from every saved folder and adds it to passed parent EmailTreeItem (recursively with subfolders).
+     * Headers of messages saved for INBOX are added to created EmailTreeItem right away. Other folders get loader of their first page
+     * which reads their headers when folder is selected (it is replaced by FetchMessagesService when folder is connected).
+     * @param cachedFolders - folders saved in local file
+     * @param parent        - object of the class EmailTreeItem - folder in TreeView menu to which folders are added
+     */
+    private void handleCachedFolders(List<CachedFolder> cachedFolders, EmailTreeItem<String> parent) {
+        for (CachedFolder cachedFolder : cachedFolders) {
+            EmailTreeItem<String> emailTreeItem = new EmailTreeItem<>(cachedFolder.getName());
+            emailTreeItem.setGraphic(iconResolver.getIconForFolder(cachedFolder.getName()));
+            emailTreeItem.setStatus(cachedFolder.getTotalMessagesCount(), cachedFolder.getUnreadMessagesCount(), 0);
+            parent.getChildren().add(emailTreeItem);
+
+            if (cachedFolder.getName().equalsIgnoreCase("INBOX")) {
+                loadSavedMessages(emailTreeItem, cachedFolder.getFullName());
+            } else {
+                // Loader is called in JavaFX thread, every time folder is selected - headers are read only once, in background thread.
+                AtomicBoolean loaded = new AtomicBoolean(false);
+                emailTreeItem.setNextPageLoader(() -> {
+                    if (loaded.compareAndSet(false, true)) {
+                        savedHeadersLoader.execute(() -> loadSavedMessages(emailTreeItem, cachedFolder.getFullName()));
+                    }
+                });
+            }
+
+            if (!cachedFolder.getSubfolders().isEmpty()) {
+                parent.setExpanded(true);
+                handleCachedFolders(cachedFolder.getSubfolders(), emailTreeItem);
+            }
+        }
+    }
+
+    /**
+     * Method reads headers of messages saved for the folder and adds them to its EmailTreeItem (if folder isn't connected yet).
+     * @param emailTreeItem - object of the class EmailTreeItem - folder in TreeView menu
+     * @param fullName      - full name of the folder on the server
+     */
+    private void loadSavedMessages(EmailTreeItem<String> emailTreeItem, String fullName) {
+        FolderSyncState folderSyncState = syncStateAccess.load(emailAddress, fullName);
+        if (folderSyncState != null) {
+            List<EmailMessage> emailMessages = new ArrayList<>();
+            for (MessageHeader messageHeader : folderSyncState.getHeaders()) {
+                // Message (object from server side) is found by its UID when folder is connected (see EmailMessage.getMessage()).
+                emailMessages.add(messageHeader.toEmailMessage(messageHeader.getWasRead()));
+            }
+            emailTreeItem.addSavedEmailMessages(emailMessages);
+        }
+    }
+}
@@ -4,9 +4,11 @@ import javafx.concurrent.Service;
 import javafx.concurrent.Task;
 import krawczyk.grzegorz.EmailManager;
 import krawczyk.grzegorz.controllers.EmailLoginResult;
+import krawczyk.grzegorz.controllers.persistence.MessageCache;
 import krawczyk.grzegorz.models.EmailAccount;
 
 import javax.mail.*;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Controller responsible for authentication to email provider.
@@ -21,14 +23,32 @@ public class LoginService extends Service<EmailLoginResult> {
     EmailAccount emailAccount;
     EmailManager emailManager;
 
+    /**
+     * Loading of the account from local files (see LoadCachedAccountService) - account is added to EmailManager only after it ends,
+     * so folders loaded from local files are used. It is completed right away if the account isn't loaded from local files.
+     */
+    private CompletableFuture<Void> cachedAccountLoaded;
+
     /**
      * Constructor of the class LoginService.
      * @param emailAccount
      * @param emailManager
      */
     public LoginService(EmailAccount emailAccount, EmailManager emailManager) {
+        this(emailAccount, emailManager, CompletableFuture.completedFuture(null));
+    }
+
+    /**
+     * Constructor of the class LoginService used when the account is loaded from local files at the same time.
+     * Application connects to the server while files are read, and account is added to EmailManager when both are done.
+     * @param emailAccount
+     * @param emailManager
+     * @param cachedAccountLoaded - completed when account loaded from local files is added to EmailManager
+     */
+    public LoginService(EmailAccount emailAccount, EmailManager emailManager, CompletableFuture<Void> cachedAccountLoaded) {
         this.emailAccount = emailAccount;
         this.emailManager = emailManager;
+        this.cachedAccountLoaded = cachedAccountLoaded;
     }
 
     // In LoginWindowController there is loginService.start() method called.
@@ -73,7 +93,15 @@ public class LoginService extends Service<EmailLoginResult> {
                     this.emailAccount.getPassword());
             emailAccount.setStore(store);
 
+            // All background work of this account borrows connections from the pool (see ConnectionPool).
+            new ConnectionPool(store, Integer.parseInt(this.emailAccount.getProperties().getProperty("maxConnections")));
+            // Opened messages and attachments are saved in local cache of the account (see MessageCache).
+            MessageCache.register(store, this.emailAccount.getAddress(),
+                    Long.parseLong(this.emailAccount.getProperties().getProperty("messageCacheSize")));
+
             // It adds this emailAccout to TreeView (it will appear in Main window)
+            // Folders loaded from local files are used, so login waits for them (it is connected already).
+            cachedAccountLoaded.join();
             emailManager.addEmailAccount(emailAccount);
         } catch (NoSuchProviderException e) {
             e.printStackTrace();
@@ -0,0 +1,185 @@
+package krawczyk.grzegorz.controllers.services;
+
+import com.sun.mail.imap.IMAPMessage;
+
+import javax.mail.Message;
+import javax.management.NotificationEmitter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class makes sure that contents of email messages read from server don't stay in memory after they are not needed anymore.
+ * <hr></hr>
+ * Message objects (from server side) are kept by their open folders, and they keep data which were read from server
+ * (e.g. headers of the message). Contents of messages are saved in caches (see MessageCache and RenderedMessageCache),
+ * so data kept by Message objects is needed only for a moment:
+ * <ul>
+ *     <li>Multipart contents of messages are never kept by Message objects (see install()),</li>
+ *     <li>
+ *         headers, structure and flags fetched for loaded messages (pages of messages, new messages) are released right after
+ *         EmailMessages are created from them (see releaseFetched()) - they are not counted in any budget,
+ *     </li>
+ *     <li>
+ *         messages which were viewed (their content or attachment was read - see touch()) keep their data only up to
+ *         RECENT_MESSAGES_BUDGET bytes (sizes of the messages) - when another message is viewed, data of the least recently
+ *         viewed messages is released,
+ *     </li>
+ *     <li>
+ *         when heap is almost full, data of all viewed messages and contents of recently rendered messages are released
+ *         (JVM sends notification when usage of memory crosses threshold - see MemoryPoolMXBean.setCollectionUsageThreshold()).
+ *     </li>
+ * </ul>
+ * Open folder still keeps Message object (number and UID, without fetched data) of every message it knows -
+ * it is released only when the folder is closed.
+ */
+public class MessageMemoryManager {
+
+    /**
+     * Total size (in bytes) of recently viewed messages (passed to touch()) which keep data read from server - 16 MB by default.
+     * Messages only fetched with headers are not counted - their data is released right away (see releaseFetched()).
+     * It can be changed with system property (e.g. -Dmessage.memory.budget=67108864).
+     */
+    private static final long RECENT_MESSAGES_BUDGET = Long.getLong("message.memory.budget", 16L * 1024 * 1024);
+
+    /**
+     * Part of heap (after garbage collection) above which all released data is released right away.
+     */
+    private static final double HEAP_PRESSURE_THRESHOLD = 0.8;
+
+    /**
+     * Sizes of recently viewed messages from the least recently viewed to the most recently viewed.
+     */
+    private static final LinkedHashMap<Message, Integer> recentMessages = new LinkedHashMap<>(16, 0.75f, true);
+    private static long recentMessagesSize = 0;
+
+    /**
+     * Actions called when heap is almost full (e.g. clearing of RenderedMessageCache).
+     */
+    private static final List<Runnable> heapPressureListeners = new ArrayList<>();
+
+    private static boolean installed;
+
+    /**
+     * Method prepares the application to release contents of messages. It has to be called when application starts,
+     * before the first message is read from server.
+     * <hr></hr>
+     * Property mail.mime.cachemultipart is read only once by javax.mail, so it has to be set before it is used.
+     * When it is false, Multipart returned by Message.getContent() isn't kept by the message - it is created for every call
+     * (it is only structure of the message, so it doesn't need any request to server).
+     */
+    public static synchronized void install() {
+        if (installed) {
+            return;
+        }
+        installed = true;
+        System.setProperty("mail.mime.cachemultipart", "false");
+
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // Threshold is set only for heap pools which have it (usually the pool with the oldest objects).
+            if (memoryPool.getType() == MemoryType.HEAP && memoryPool.isCollectionUsageThresholdSupported()) {
+                long maxSize = memoryPool.getUsage().getMax();
+                if (maxSize > 0) {
+                    memoryPool.setCollectionUsageThreshold((long) (maxSize * HEAP_PRESSURE_THRESHOLD));
+                }
+            }
+        }
+
+        NotificationEmitter notificationEmitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        notificationEmitter.addNotificationListener((notification, handback) -> {
+            if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType())) {
+                releaseAll();
+            }
+        }, null, null);
+    }
+
+    /**
+     * Method adds action which is called when heap is almost full - it should release data which can be loaded again.
+     * @param listener - action releasing data
+     */
+    public static synchronized void addHeapPressureListener(Runnable listener) {
+        heapPressureListeners.add(listener);
+    }
+
+    /**
+     * Method marks message as the most recently viewed (its content was just read from server).
+     * If recently viewed messages are bigger than RECENT_MESSAGES_BUDGET, data of the least recently viewed messages is released
+     * (the most recently viewed message keeps its data even if it is bigger).
+     * <hr></hr>
+     * Size is taken from EmailMessage - Message.getSize() would fetch headers of the message again (they were released
+     * after EmailMessage was created - see releaseFetched()).
+     * @param message - email message (object representing email message on a server)
+     * @param size    - size of the message in bytes (see EmailMessage.getSize())
+     */
+    public static void touch(Message message, int size) {
+        size = Math.max(size, 0);
+
+        List<Message> messagesToRelease = new ArrayList<>();
+        synchronized (MessageMemoryManager.class) {
+            Integer previousSize = recentMessages.put(message, size);
+            recentMessagesSize += size - (previousSize != null ? previousSize : 0);
+            Iterator<Map.Entry<Message, Integer>> iterator = recentMessages.entrySet().iterator();
+            while (recentMessagesSize > RECENT_MESSAGES_BUDGET && recentMessages.size() > 1 && iterator.hasNext()) {
+                Map.Entry<Message, Integer> entry = iterator.next();
+                messagesToRelease.add(entry.getKey());
+                recentMessagesSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+        // Message is released outside of synchronized block - it is synchronized with its folder.
+        messagesToRelease.forEach(MessageMemoryManager::release);
+    }
+
+    /**
+     * Method makes fetched messages forget their headers, structure and flags right after EmailMessages were created from them.
+     * <hr></hr>
+     * Open folder keeps Message objects of all messages it knows (by their numbers), so without it data fetched for every loaded
+     * message (ENVELOPE, BODYSTRUCTURE, FLAGS) would stay in memory as long as the folder is open - next to the same data
+     * in EmailMessages. Only number and UID of the message are kept, so it is still found by UID (see EmailMessage.getMessage()).
+     * @param messages - fetched messages (null elements are skipped)
+     */
+    public static void releaseFetched(Message[] messages) {
+        for (Message message : messages) {
+            if (message != null) {
+                release(message);
+            }
+        }
+    }
+
+    /**
+     * Method releases data of all recently viewed messages and calls all heap pressure listeners.
+     * It is called from thread which sends notifications about memory.
+     */
+    private static void releaseAll() {
+        List<Message> messagesToRelease;
+        List<Runnable> listeners;
+        synchronized (MessageMemoryManager.class) {
+            messagesToRelease = new ArrayList<>(recentMessages.keySet());
+            recentMessages.clear();
+            recentMessagesSize = 0;
+            listeners = new ArrayList<>(heapPressureListeners);
+        }
+        messagesToRelease.forEach(MessageMemoryManager::release);
+        listeners.forEach(Runnable::run);
+    }
+
+    /**
+     * Method makes message forget data read from server (they are read again if they are needed).
+     * @param message - email message (object representing email message on a server)
+     */
+    private static void release(Message message) {
+        if (message instanceof IMAPMessage imapMessage) {
+            try {
+                imapMessage.invalidateHeaders();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
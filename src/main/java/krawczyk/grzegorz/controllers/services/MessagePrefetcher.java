@@ -0,0 +1,74 @@
+package krawczyk.grzegorz.controllers.services;
+
+import krawczyk.grzegorz.models.EmailMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class loads and renders in advance messages next to the message selected by user (see MessageRendererService.prerender()),
+ * so when user goes to next or previous message (e.g. with arrow keys) it is displayed without waiting for the server.
+ * <hr></hr>
+ * Messages are prefetched one by one in single background thread with low priority. Messages closer to the selected one are prefetched first.
+ * When user selects other message, prefetching of neighbours of previously selected message is cancelled.
+ * Prefetching never waits for connection - if all connections of the account are busy, message is skipped (see ConnectionPool).
+ */
+public class MessagePrefetcher {
+
+    /**
+     * Number of messages prefetched below and above the selected message.
+     */
+    private static final int PREFETCH_DISTANCE = 3;
+
+    private ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "message-prefetcher");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    /**
+     * Number of the last selection - prefetching started for older selection stops when it sees that number changed.
+     */
+    private AtomicLong selectionNumber = new AtomicLong();
+
+    private Future<?> currentPrefetching;
+
+    /**
+     * Method starts prefetching of messages next to the selected message (and cancels previous prefetching).
+     * <hr></hr>
+     * It is called by MainWindowController in JavaFX thread every time user selects a message.
+     * @param emailMessages - list of messages displayed in Email Table View (in displayed order)
+     * @param selectedIndex - position of the selected message in the list
+     */
+    public void prefetchAround(List<EmailMessage> emailMessages, int selectedIndex) {
+        long currentSelectionNumber = selectionNumber.incrementAndGet();
+        if (currentPrefetching != null) {
+            currentPrefetching.cancel(true);
+        }
+
+        // Neighbours are taken from the list right away (in JavaFX thread) - list can change later.
+        List<EmailMessage> neighbours = new ArrayList<>();
+        for (int distance = 1; distance <= PREFETCH_DISTANCE; distance++) {
+            if (selectedIndex + distance < emailMessages.size()) {
+                neighbours.add(emailMessages.get(selectedIndex + distance));
+            }
+            if (selectedIndex - distance >= 0) {
+                neighbours.add(emailMessages.get(selectedIndex - distance));
+            }
+        }
+
+        currentPrefetching = executor.submit(() -> {
+            for (EmailMessage emailMessage : neighbours) {
+                if (selectionNumber.get() != currentSelectionNumber || Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                MessageRendererService.prerender(emailMessage);
+            }
+        });
+    }
+}
@@ -1,16 +1,50 @@
 package krawczyk.grzegorz.controllers.services;
 
+import com.sun.mail.imap.IMAPMessage;
 import javafx.concurrent.Service;
 import javafx.concurrent.Task;
-import javafx.scene.web.WebEngine;
+import javafx.concurrent.WorkerStateEvent;
+import javafx.scene.control.ContextMenu;
+import javafx.scene.control.Control;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.MenuItem;
+import javafx.scene.control.SelectionMode;
+import javafx.scene.input.Clipboard;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
+import javafx.scene.input.KeyEvent;
+import javafx.scene.web.WebView;
+import krawczyk.grzegorz.controllers.persistence.CachedBody;
+import krawczyk.grzegorz.controllers.persistence.MessageCache;
+import krawczyk.grzegorz.controllers.persistence.RemoteContentAccess;
 import krawczyk.grzegorz.models.EmailMessage;
 
 import javax.mail.BodyPart;
+import javax.mail.Folder;
 import javax.mail.Message;
+import javax.mail.MessageRemovedException;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
-import javax.mail.internet.MimeBodyPart;
+import javax.mail.Part;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Controller responsible for displaying email message - content of the message.
@@ -18,9 +52,41 @@ import java.io.IOException;
  * It extends Service class which is used to perform tasks on background Threads.
  * Service class is part of JavaFX and it makes easier to manage multithreading code.
  * <hr></hr>
- * Service won't return anything (it returns Void object).
+ * Every restart() is new rendering with its own number and its own buffer (see Rendering), so renderings never share content.
+ * restart() cancels previous rendering - it stops waiting for connection and loading next parts of the message
+ * (a command already sent to the server can't be stopped, but its result is thrown away).
+ * Content is displayed only if it comes from the latest rendering, so user always sees message selected as the last one.
+ * <hr></hr>
+ * HTML content doesn't load anything from the internet (images, styles, fonts) unless user allowed it for sender of the message
+ * (see RemoteContentAccess) - it is blocked by Content-Security-Policy added to the content. Inline parts of the message
+ * ("cid:" references) are loaded from local cache or downloaded when Web View needs them (see InlinePartProvider).
+ * <hr></hr>
+ * Service will return rendered message (or null if rendering failed).
  */
-public class MessageRendererService extends Service {
+public class MessageRendererService extends Service<MessageRendererService.Rendering> {
+
+    /**
+     * Contents of recently rendered messages - shared by all windows displaying messages.
+     * At most 200 messages and 10 million characters are kept.
+     */
+    private static final RenderedMessageCache renderedMessageCache = new RenderedMessageCache(200, 10_000_000);
+
+    static {
+        // When heap is almost full, rendered contents are removed - they are read again from local cache when needed.
+        MessageMemoryManager.addHeapPressureListener(renderedMessageCache::clear);
+    }
+
+    /**
+     * Maximal size of displayed text of the message (characters) - rest of longer text is not downloaded.
+     */
+    private static final int MAX_TEXT_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Builder to which text of the message is decoded - every thread (of executor of the account) reuses its own builder.
+     * Builders bigger than MAX_REUSED_BUILDER_CAPACITY are not reused.
+     */
+    private static final ThreadLocal<StringBuilder> TEXT_BUILDER = ThreadLocal.withInitial(() -> new StringBuilder(16 * 1024));
+    private static final int MAX_REUSED_BUILDER_CAPACITY = 256 * 1024;
 
     /**
      * EmailMessage set by MainWindowController.
@@ -28,139 +94,575 @@ public class MessageRendererService extends Service {
     private EmailMessage emailMessage;
 
     /**
-     * WebEngine is used to render email message. It is managed by WebView node in main wind of the application.
+     * WebView is used to render email message with HTML content. It is node in main wind of the application.
+     */
+    private WebView webView;
+
+    /**
+     * ListView is used to display email message with plain text - line by line. Only visible lines have their nodes,
+     * so it is much faster and lighter than WebView. It is node in the same place as WebView (only one of them is visible).
+     * Long lines are wrapped to width of the ListView, and selected lines can be copied (see setUpTextListView()).
+     */
+    private ListView<String> textListView;
+
+    /**
+     * Number of the latest rendering - it is changed only in JavaFX thread (in createTask()).
+     */
+    private long lastRenderingNumber = 0;
+
+    /**
+     * Senders whose messages can load remote content - shared by all windows displaying messages.
+     */
+    private static final RemoteContentAccess remoteContentAccess = new RemoteContentAccess();
+
+    /**
+     * Content-Security-Policy of HTML content: scripts are never run, remote content is loaded only if it is allowed for sender.
+     */
+    private static final String BLOCKING_POLICY = "default-src 'none'; img-src " + InlinePartProvider.PROTOCOL + ": data:; style-src 'unsafe-inline'; font-src data:";
+    private static final String ALLOWING_POLICY = "default-src 'none'; img-src * " + InlinePartProvider.PROTOCOL + ": data:; style-src * 'unsafe-inline'; font-src * data:";
+    private static final Pattern CID_PATTERN = Pattern.compile("(?i)cid:([^\"'\\s)>]+)");
+    // Image tags without "loading" attribute.
+    private static final Pattern IMG_PATTERN = Pattern.compile("(?i)<img(?![^>]*\\sloading\\s*=)(?=[\\s/>])");
+
+    /**
+     * Maximal length of HTML content which can be displayed as plain text (if it contains only simple tags - see isSimpleHtml()).
+     */
+    private static final int MAX_SIMPLE_HTML_LENGTH = 20_000;
+
+    /**
+     * Text displayed instead of content of message which was removed from the server.
+     */
+    private static final String MESSAGE_REMOVED_NOTICE = "This message doesn't exist on the server anymore.";
+
+    /**
+     * Text displayed instead of content of message which couldn't be loaded (e.g. application isn't connected to the server yet).
      */
-    private WebEngine webEngine;
+    private static final String MESSAGE_UNAVAILABLE_NOTICE = "This message can't be displayed right now.";
 
     /**
-     * stringBuffer is used to temporarily store email message content.
+     * Tags which don't change how text looks (except line breaks) - HTML with only these tags is displayed as plain text.
      */
-    private StringBuffer stringBuffer;
+    private static final Set<String> SIMPLE_HTML_TAGS = Set.of("html", "body", "p", "div", "span", "br");
+    // Doctype and comments (<!...>) are matched as tags without name.
+    private static final Pattern TAG_PATTERN = Pattern.compile("<\\s*/?\\s*([a-zA-Z0-9]+)[^>]*>|<![^>]*>");
+    private static final KeyCombination COPY_KEY_COMBINATION = new KeyCodeCombination(KeyCode.C, KeyCombination.SHORTCUT_DOWN);
+    private static final Pattern LINE_BREAK_PATTERN = Pattern.compile("(?i)<\\s*br\\s*/?\\s*>|<\\s*/\\s*(p|div)\\s*>");
 
     /**
      * Constructor of MessageRendererService class.
-     * @param webEngine - Object of class WebEngine from WebView object.
-     *                  WebEngine is used to render (display) email message set int this class. So it is important
-     *                  to pass WebEngine object managed (contained) by WebView node in main window of the application.
+     * @param webView      - WebView node used to render (display) email message with HTML content. So it is important
+     *                     to pass WebView node in window of the application.
+     * @param textListView - ListView node used to display email message with plain text (placed in the same place as webView)
      */
-    public MessageRendererService(WebEngine webEngine) {
-        this.webEngine = webEngine;
-        this.stringBuffer = new StringBuffer();
+    public MessageRendererService(WebView webView, ListView<String> textListView) {
+        this.webView = webView;
+        this.textListView = textListView;
+        setUpTextListView();
 
-        // setOnSucceeded() event handler is triggered only if task state is SUCCEEDED
+        // Event handler is triggered only if task state is SUCCEEDED
         // (it works only in case of success of background task in Service was ended, and it was success).
         // So if code from createTask() method is ended successfully it will trigger this event listener which will display message.
-        this.setOnSucceeded(event -> {
-            displayMessage();
+        // It is added as event handler (not setOnSucceeded()), so it is called before onSucceeded set by user of the service
+        // (e.g. EmailDetailsController, which shows attachments of displayed message).
+        this.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, event -> {
+            displayMessage(getValue());
         });
     }
 
     @Override
-    protected Task createTask() {
-        return new Task() {
+    protected Task<Rendering> createTask() {
+        // Message and number are taken now (in JavaFX thread) - setEmailMessage() can be called again while task is running.
+        Rendering rendering = new Rendering(++lastRenderingNumber, emailMessage, false);
+        return new Task<Rendering>() {
             @Override
-            protected Object call() throws Exception {
+            protected Rendering call() {
+                rendering.setCancelled(this::isCancelled);
                 try {
-                    loadMessage();
+                    rendering.render();
+                    // Plain text is split into lines and HTML is prepared in background thread - JavaFX thread only displays them.
+                    rendering.splitLines();
+                    rendering.prepareHtml(remoteContentAccess.isAllowed(rendering.emailMessage.getSender()));
+                    return rendering;
+                } catch (CancellationException e) {
+                    // Newer rendering was started - result of this one isn't needed (it is skipped by displayMessage()).
+                    return rendering;
+                } catch (MessageRemovedException e) {
+                    // Message was removed from the server (e.g. on other device) - user is informed about it instead of its content.
+                    rendering.setNotice(MESSAGE_REMOVED_NOTICE);
+                    return rendering;
                 } catch (Exception e) {
-                    e.printStackTrace();
+                    if (!isCancelled()) {
+                        e.printStackTrace();
+                    }
+                    // Notice is displayed instead of the message (e.g. message loaded from local file before the application
+                    // connected to the server), so content of previously selected message doesn't stay on the screen.
+                    rendering.setNotice(MESSAGE_UNAVAILABLE_NOTICE);
+                    return rendering;
                 }
-                return null;
             }
         };
     }
 
     /**
-     * Method loads email message content (from emailMessage property) to stringBuffer.
-     * <hr></hr>
-     * Method clears stringBuffer property. Then it adds parts of the message to stringBuffer.
-     * @throws MessagingException
-     * @throws IOException
+     * Class represents one rendering of email message - it has its own buffer for content.
      */
-    private void loadMessage() throws MessagingException, IOException {
-        stringBuffer.setLength(0);
-        Message message = emailMessage.getMessage();
-        // contentType can be simple of multipart
-        String contentType = message.getContentType();
+    public static class Rendering {
+
+        private final long number;
+        private final EmailMessage emailMessage;
+
+        /**
+         * Information if message is only rendered in advance (see prerender()) - then it doesn't wait for connection.
+         */
+        private final boolean prerendering;
+
+        /**
+         * Content of the message - it is taken from caches as it is (without copying) or loaded from server by loadText().
+         */
+        private String content = "";
+
+        /**
+         * Information if content is plain text (displayed in ListView) or HTML (displayed in WebView).
+         */
+        private boolean plainText = false;
+        private List<String> lines;
+        private BooleanSupplier cancelled = () -> Thread.currentThread().isInterrupted();
+
+        private Rendering(long number, EmailMessage emailMessage, boolean prerendering) {
+            this.number = number;
+            this.emailMessage = emailMessage;
+            this.prerendering = prerendering;
+        }
 
-        if (isSimpleType(contentType)){
-            stringBuffer.append(message.getContent().toString());
-        } else if (isMultipartType(contentType)) {
-            Multipart multipart = (Multipart) message.getContent();
-            loadMultipart(multipart, stringBuffer);
+        private void setCancelled(BooleanSupplier cancelled) {
+            this.cancelled = cancelled;
+        }
+
+        /**
+         * Method sets notice displayed (as plain text) instead of content of the message.
+         * @param notice - text displayed to the user
+         */
+        private void setNotice(String notice) {
+            content = notice;
+            plainText = true;
+            lines = List.of(notice);
+        }
+
+        /**
+         * Method throws CancellationException if rendering was cancelled - it is called before every longer step of rendering.
+         */
+        private void checkCancelled() {
+            if (cancelled.getAsBoolean()) {
+                throw new CancellationException();
+            }
+        }
+
+        /**
+         * Method loads email message content - from local cache if the message was opened before,
+         * or from server (and then it saves it in the cache).
+         * @throws Exception
+         */
+        private void render() throws Exception {
+            Folder folder = emailMessage.getFolder();
+            if (folder == null) {
+                // Message loaded from local file before the application connected to the server (see LoadCachedAccountService).
+                // It can be displayed when its folder is connected.
+                throw new MessagingException("Message isn't connected to the server yet: " + emailMessage.getUid());
+            }
+
+            // Message viewed a moment ago is taken from memory - it isn't read or rendered again.
+            CachedBody cachedBody = renderedMessageCache.get(emailMessage);
+            if (cachedBody != null) {
+                loadCachedBody(cachedBody);
+                return;
+            }
+
+            // Message opened before is taken from local cache - nothing is sent to server.
+            checkCancelled();
+            MessageCache messageCache = MessageCache.getMessageCache(folder);
+            cachedBody = messageCache.loadBody(folder.getFullName(), emailMessage.getUid());
+            if (cachedBody != null) {
+                renderedMessageCache.put(emailMessage, cachedBody);
+                loadCachedBody(cachedBody);
+                return;
+            }
+
+            // Message is loaded with connection borrowed from pool of its account.
+            // Its folder could be closed by the pool to make place for other folder - then it is opened again
+            // (and it isn't closed while the message is loaded).
+            // Waiting for connection is interrupted when rendering is cancelled.
+            checkCancelled();
+            ConnectionPool connectionPool = ConnectionPool.getConnectionPool(folder);
+            if (prerendering) {
+                // Message rendered in advance doesn't wait for connection - it is loaded when user opens it.
+                if (!connectionPool.tryBorrow()) {
+                    return;
+                }
+                try {
+                    connectionPool.useFolder(folder, () -> {
+                        loadMessage();
+                        return null;
+                    });
+                } finally {
+                    connectionPool.release();
+                }
+            } else {
+                connectionPool.withFolder(folder, () -> {
+                    checkCancelled();
+                    loadMessage();
+                    return null;
+                });
+            }
+
+            // Simple HTML (e.g. text with paragraphs) is changed into plain text once - and saved in the cache as plain text.
+            if (!plainText && isSimpleHtml(content)) {
+                content = toPlainText(content);
+                plainText = true;
+            }
+
+            // Attachments are saved in the cache only when user downloads them (see EmailDetailsController).
+            cachedBody = new CachedBody(content, plainText);
+            messageCache.saveBody(folder.getFullName(), emailMessage.getUid(), cachedBody);
+            renderedMessageCache.put(emailMessage, cachedBody);
+        }
+
+        /**
+         * Method loads content of the message from saved content (CachedBody).
+         * @param cachedBody - saved content of the message
+         */
+        private void loadCachedBody(CachedBody cachedBody) {
+            content = cachedBody.getContent();
+            plainText = cachedBody.isPlainText();
+        }
+
+        /**
+         * Method prepares HTML content to be displayed in Web View - it adds Content-Security-Policy which blocks remote content
+         * (if it isn't allowed) and changes "cid:" references into URLs of inline parts (see InlinePartProvider).
+         * Content saved in caches is not changed.
+         * @param remoteContentAllowed - true if sender of the message is allowed to load remote content
+         */
+        private void prepareHtml(boolean remoteContentAllowed) {
+            if (plainText) {
+                return;
+            }
+
+            String html = content;
+            Matcher matcher = CID_PATTERN.matcher(html);
+            if (matcher.find()) {
+                String prefix = InlinePartProvider.register(emailMessage);
+                html = matcher.replaceAll(match -> Matcher.quoteReplacement(InlinePartProvider.toUrl(prefix, match.group(1))));
+
+                // Inline images are downloaded from server only when they are scrolled into view (not all at once
+                // when message is opened) - Web View loads images with loading="lazy" only when they are near visible area.
+                html = IMG_PATTERN.matcher(html).replaceAll("<img loading=\"lazy\"");
+            }
+
+            // Meta tag before the content is moved by Web View to head of the document.
+            content = "<meta http-equiv=\"Content-Security-Policy\" content=\""
+                    + (remoteContentAllowed ? ALLOWING_POLICY : BLOCKING_POLICY) + "\">" + html;
+        }
+
+        /**
+         * Method splits plain text content into lines displayed in ListView.
+         */
+        private void splitLines() {
+            if (plainText) {
+                lines = content.lines().toList();
+            }
+        }
+
+        /**
+         * Method loads email message content from server.
+         * <hr></hr>
+         * Only one part of the message is downloaded - the part which is displayed (see findTextPart()).
+         * Attachments are not downloaded - they are known from structure of the message (see EmailMessage.getAttachmentsList()).
+         * @throws MessagingException
+         * @throws IOException
+         */
+        private void loadMessage() throws MessagingException, IOException {
+            Message message = emailMessage.getMessage();
+            if (message instanceof IMAPMessage imapMessage) {
+                // Content is fetched with BODY.PEEK, so loading (or prefetching) message doesn't mark it read on the server -
+                // message is marked read by EmailManager when user selects it.
+                imapMessage.setPeek(true);
+            }
+
+            Part textPart = findTextPart(message);
+            if (textPart != null) {
+                checkCancelled();
+                loadText(textPart);
+            }
+            // Data read from server is kept by the message only for few recently viewed messages.
+            MessageMemoryManager.touch(message, emailMessage.getSize().getSize());
+        }
+
+        /**
+         * Method recursively finds part of the message which should be displayed - text which isn't an attachment.
+         * If message has the same text in many forms (multipart/alternative), HTML form is preferred (it is the last one).
+         * Only structure of the message is used - content of parts is not downloaded.
+         * @param part - message or its part
+         * @return Part - part with text to display, or null if there is no such part
+         * @throws MessagingException
+         * @throws IOException
+         */
+        private Part findTextPart(Part part) throws MessagingException, IOException {
+            if (part.isMimeType("text/*")) {
+                return Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition()) ? null : part;
+            }
+            if (!part.isMimeType("multipart/*")) {
+                return null;
+            }
+
+            Multipart multipart = (Multipart) part.getContent();
+            boolean alternative = part.isMimeType("multipart/alternative");
+            for (int i = 0; i < multipart.getCount(); i++) {
+                // Alternatives are ordered from the simplest to the richest form.
+                BodyPart bodyPart = multipart.getBodyPart(alternative ? multipart.getCount() - 1 - i : i);
+                Part textPart = findTextPart(bodyPart);
+                if (textPart != null) {
+                    return textPart;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Method loads text of passed part to content. At most MAX_TEXT_SIZE characters are read from the server
+         * (IMAP fetches content of the part in pieces, so rest of the part is never downloaded).
+         * <hr></hr>
+         * Text is decoded while it is read - stream of the part decodes transfer encoding (base64 / quoted-printable)
+         * and reader decodes charset - straight to builder of the thread (see TEXT_BUILDER). So only the builder and the final
+         * String hold the whole text.
+         * @param part - part with text
+         * @throws MessagingException
+         * @throws IOException
+         */
+        private void loadText(Part part) throws MessagingException, IOException {
+            plainText = part.isMimeType("text/plain");
+            StringBuilder textBuilder = TEXT_BUILDER.get();
+            textBuilder.setLength(0);
+
+            boolean truncated = false;
+            try (Reader reader = new InputStreamReader(part.getInputStream(), getCharset(part))) {
+                char[] buffer = new char[8192];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    if (textBuilder.length() + read > MAX_TEXT_SIZE) {
+                        textBuilder.append(buffer, 0, MAX_TEXT_SIZE - textBuilder.length());
+                        truncated = true;
+                        break;
+                    }
+                    textBuilder.append(buffer, 0, read);
+                    checkCancelled();
+                }
+            }
+
+            if (truncated) {
+                textBuilder.append("\n\n[Message is too long - only first ").append(MAX_TEXT_SIZE / 1024).append(" K characters are displayed]");
+            }
+            content = textBuilder.toString();
+
+            // Builder of very long text is not kept - it would hold a lot of memory in every thread.
+            if (textBuilder.capacity() > MAX_REUSED_BUILDER_CAPACITY) {
+                TEXT_BUILDER.remove();
+            } else {
+                textBuilder.setLength(0);
+            }
+        }
+
+        /**
+         * Method returns charset of the text in passed part (from its content type).
+         * @param part - part with text
+         * @return Charset - charset of the text, or UTF-8 if it is unknown
+         * @throws MessagingException
+         */
+        private Charset getCharset(Part part) throws MessagingException {
+            try {
+                String charset = new ContentType(part.getContentType()).getParameter("charset");
+                if (charset != null) {
+                    return Charset.forName(MimeUtility.javaCharset(charset));
+                }
+            } catch (ParseException | IllegalArgumentException e) {
+                // Unknown or invalid charset - UTF-8 is used.
+            }
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    /**
+     * Method loads and renders the message in advance (in current thread), so it is in memory when user opens it.
+     * It is used by MessagePrefetcher - rendering is cancelled by interrupting the thread.
+     * @param emailMessage - email message to be rendered
+     */
+    public static void prerender(EmailMessage emailMessage) {
+        if (renderedMessageCache.get(emailMessage) != null) {
+            return;
+        }
+        try {
+            new Rendering(0, emailMessage, true).render();
+        } catch (CancellationException e) {
+            // Prefetching was cancelled - nothing to do.
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Method recursively loads nested Multipart subcomponents of the passed Multipart to stringBuffer.
-     * @param multipart - object of class Multipart (component of the message or subcomponent of previous Multipart component)
-     * @param stringBuffer - StringBuffer used to load the message before displaying (load parts of the message)
-     * @throws MessagingException
-     * @throws IOException
+     * Method allows loading of remote content in messages from sender of passed message (it is applied when message is rendered again).
+     * @param emailMessage - email message
      */
-    private void loadMultipart (Multipart multipart, StringBuffer stringBuffer) throws MessagingException, IOException {
-        for (int i = multipart.getCount() - 1; i >= 0; i--) {
-            BodyPart bodyPart = multipart.getBodyPart(i);
-            String bodyPartContentType = bodyPart.getContentType();
+    public static void allowRemoteContent(EmailMessage emailMessage) {
+        remoteContentAccess.allow(emailMessage.getSender());
+    }
 
-            if (isSimpleType(bodyPartContentType)) {
-                stringBuffer.append(bodyPart.getContent().toString());
-            } else if (isMultipartType(bodyPartContentType)) {
-                Multipart multipartSubComponent = (Multipart) bodyPart.getContent();
-                loadMultipart(multipartSubComponent, stringBuffer);
-            } else if (!isTextPlais(bodyPartContentType)) {
-                // handle attachment:
-                MimeBodyPart mimeBodyPart = (MimeBodyPart) bodyPart;
-                this.emailMessage.addAttachment(mimeBodyPart);
+    /**
+     * Method returns true if passed HTML content is short and contains only tags which don't change how text looks
+     * (see SIMPLE_HTML_TAGS) - such content is displayed as plain text.
+     * @param content - HTML content of the message
+     * @return boolean - true if content can be displayed as plain text
+     */
+    private static boolean isSimpleHtml(CharSequence content) {
+        if (content.length() > MAX_SIMPLE_HTML_LENGTH) {
+            return false;
+        }
+        Matcher matcher = TAG_PATTERN.matcher(content);
+        while (matcher.find()) {
+            if (matcher.group(1) != null && !SIMPLE_HTML_TAGS.contains(matcher.group(1).toLowerCase())) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Method changes simple HTML content into plain text - line breaks and ends of paragraphs become new lines,
+     * other tags are removed and the most common entities are decoded.
+     * @param html - simple HTML content (see isSimpleHtml())
+     * @return String - plain text
+     */
+    private static String toPlainText(String html) {
+        String text = LINE_BREAK_PATTERN.matcher(html).replaceAll("\n");
+        text = TAG_PATTERN.matcher(text).replaceAll("");
+        return text.replace("&nbsp;", " ")
+                .replace("&lt;", "<")
+                .replace("&gt;", ">")
+                .replace("&quot;", "\"")
+                .replace("&#39;", "'")
+                .replace("&amp;", "&")
+                .strip();
     }
 
     /**
-     * Method returns true if passed content type matches plain text as content of a message.
-     * @param contentType - Sting containing content type of message.
-     * @return boolean - true if content type is plain text.
+     * Method prepares ListView to display plain text like text area (but only visible lines have their nodes):
+     * <ul>
+     *     <li>
+     *         every line is displayed in cell which wraps text to width of the ListView - default cell displays line
+     *         in one row and cuts its end ("..."),
+     *     </li>
+     *     <li>
+     *         many lines can be selected (with mouse, Shift / Ctrl or Ctrl+A) and copied to clipboard with Ctrl+C or context menu.
+     *     </li>
+     * </ul>
      */
-    private boolean isTextPlais (String contentType) {
-        return contentType.contains("TEXT/PLAIN");
+    private void setUpTextListView() {
+        textListView.setCellFactory(listView -> new ListCell<String>() {
+            {
+                setWrapText(true);
+                // Cell is as wide as the ListView (without its vertical scroll bar), so long lines are wrapped instead of cut.
+                prefWidthProperty().bind(listView.widthProperty().subtract(20));
+                setMaxWidth(Control.USE_PREF_SIZE);
+            }
+
+            @Override
+            protected void updateItem(String line, boolean empty) {
+                super.updateItem(line, empty);
+                setText(empty ? null : line);
+            }
+        });
+        textListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+
+        MenuItem copyMenuItem = new MenuItem("Copy");
+        copyMenuItem.setOnAction(event -> copySelectedLines());
+        MenuItem selectAllMenuItem = new MenuItem("Select all");
+        selectAllMenuItem.setOnAction(event -> textListView.getSelectionModel().selectAll());
+        textListView.setContextMenu(new ContextMenu(copyMenuItem, selectAllMenuItem));
+
+        textListView.addEventHandler(KeyEvent.KEY_PRESSED, event -> {
+            if (COPY_KEY_COMBINATION.match(event)) {
+                copySelectedLines();
+                event.consume();
+            }
+        });
     }
 
     /**
-     * Method returns true if passed content type matches simple type of content of a message.
-     * @param contentType - Sting containing content type of message.
-     * @return boolean - true if content type is simple.
+     * Method copies selected lines of plain text message to clipboard (in order in which they are in the message).
      */
-    private boolean isSimpleType(String contentType) {
-        if (contentType.contains("TEXT/HTML") ||
-                contentType.contains("mixed") ||
-                contentType.contains("text")) {
-            return true;
+    private void copySelectedLines() {
+        List<Integer> selectedRows = new ArrayList<>(textListView.getSelectionModel().getSelectedIndices());
+        Collections.sort(selectedRows);
+
+        StringBuilder text = new StringBuilder();
+        for (int row : selectedRows) {
+            if (text.length() > 0) {
+                text.append("\n");
+            }
+            text.append(textListView.getItems().get(row));
         }
 
-        return false;
+        ClipboardContent clipboardContent = new ClipboardContent();
+        clipboardContent.putString(text.toString());
+        Clipboard.getSystemClipboard().setContent(clipboardContent);
     }
 
     /**
-     * Method returns true if passed content type matches multipart type of content of a message.
-     * @param contentType - Sting containing content type of message.
-     * @return boolean - true if content type is multipart.
+     * Method displays email message content in window of the application - plain text in ListView and HTML in WebView.
+     * Rendering which isn't the latest one (user selected other message in the meantime) is not displayed.
+     * If the latest rendering failed, it has notice instead of content (see Rendering.setNotice()), so previous message
+     * never stays on the screen under new selection.
+     * @param rendering - rendered message
      */
-    private boolean isMultipartType (String contentType) {
-        if (contentType.contains("multipart")) {
-            return true;
+    private void displayMessage(Rendering rendering) {
+        // Only result of older rendering (another message was selected in the meantime) is skipped.
+        if (rendering.number != lastRenderingNumber) {
+            return;
         }
 
-        return false;
+        if (rendering.plainText) {
+            textListView.getSelectionModel().clearSelection();
+            textListView.getItems().setAll(rendering.lines);
+            textListView.scrollTo(0);
+            showTextListView(true);
+        } else {
+            // Email message content was loaded by the rendering.
+            // Now it is used to display of the message.
+            webView.getEngine().loadContent(rendering.content);
+            showTextListView(false);
+        }
     }
 
     /**
-     * Method displays email message content in Web View in main window of the application.
+     * Method clears displayed message (e.g. when it was deleted).
      */
-    private void displayMessage() {
+    public void clearMessage() {
+        lastRenderingNumber++;
+        textListView.getItems().clear();
+        webView.getEngine().loadContent("");
+    }
 
-        // Email message content was added (part by part) to stringBuffer.
-        // Now it is used to display of the message.
-        webEngine.loadContent(stringBuffer.toString());
+    /**
+     * Method shows ListView (and hides WebView) or the other way round.
+     * When WebView is hidden, its page is cleared, so it doesn't keep previous message in memory.
+     * @param show - true to show ListView, false to show WebView
+     */
+    private void showTextListView(boolean show) {
+        if (show && webView.isVisible()) {
+            webView.getEngine().loadContent("");
+        } else if (!show) {
+            textListView.getItems().clear();
+        }
+        textListView.setVisible(show);
+        webView.setVisible(!show);
     }
 
     /**
@@ -0,0 +1,137 @@
+package krawczyk.grzegorz.controllers.services;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.UIDSet;
+import javafx.concurrent.Service;
+import javafx.concurrent.Task;
+import krawczyk.grzegorz.models.EmailMessage;
+import krawczyk.grzegorz.models.EmailTreeItem;
+
+import javax.mail.Flags;
+import javax.mail.Folder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Controller responsible for moving many messages from one folder to other folder of the same account.
+ * <hr></hr>
+ * It extends Service class which is used to perform tasks on background Threads.
+ * Service class is part of JavaFX and it makes easier to manage multithreading code.
+ * <hr></hr>
+ * Messages are removed from Email Table View right away (once for all messages) and moved on the server in background:
+ * with one UID MOVE command if server supports MOVE, or with UID COPY, UID STORE (\Deleted) and UID EXPUNGE otherwise
+ * (UIDs are sent as ranges - see FlagUpdateQueue.toUidSets()). Progress of the service is progress of sent commands.
+ * If moving fails, only messages which weren't copied to target folder yet are added back to Email Table View -
+ * messages of UID sets already moved (or copied) are in target folder.
+ * <hr></hr>
+ * Service will return nothing (it returns Void object).
+ */
+public class MoveMessagesService extends Service<Void> {
+
+    private EmailTreeItem<String> emailTreeItem;
+    private List<EmailMessage> emailMessages;
+    private Folder targetFolder;
+
+    /**
+     * UIDs of messages already moved (or copied) to target folder - they are not added back when moving fails.
+     */
+    private Set<Long> movedUids = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor of MoveMessagesService class.
+     * <hr></hr>
+     * It has to be called in JavaFX thread - it removes messages from the folder in Email Tree View.
+     * @param emailTreeItem - folder of the messages in Email Tree View
+     * @param emailMessages - email messages to be moved
+     * @param targetFolder  - folder on the server (of the same account) to which messages are moved
+     */
+    public MoveMessagesService(EmailTreeItem<String> emailTreeItem, List<EmailMessage> emailMessages, Folder targetFolder) {
+        this.emailTreeItem = emailTreeItem;
+        this.emailMessages = new ArrayList<>(emailMessages);
+        this.targetFolder = targetFolder;
+        this.setExecutor(ConnectionPool.getConnectionPool(targetFolder).getExecutor());
+
+        List<Long> uids = new ArrayList<>();
+        for (EmailMessage emailMessage : this.emailMessages) {
+            uids.add(emailMessage.getUid());
+        }
+        emailTreeItem.removeEmailMessages(uids);
+
+        // setOnFailed() event handler is triggered only if task state is FAILED - messages which weren't moved
+        // are added back to Email Table View.
+        this.setOnFailed(event -> {
+            getException().printStackTrace();
+            for (EmailMessage emailMessage : this.emailMessages) {
+                if (!movedUids.contains(emailMessage.getUid())) {
+                    emailTreeItem.restoreEmailMessage(emailMessage);
+                }
+            }
+        });
+    }
+
+    @Override
+    protected Task<Void> createTask() {
+        return new Task<Void>() {
+            @Override
+            protected Void call() throws Exception {
+                Folder folder = emailTreeItem.getFolder();
+                long[] uids = emailMessages.stream().mapToLong(EmailMessage::getUid).toArray();
+                List<String> uidSets = FlagUpdateQueue.toUidSets(uids);
+
+                ConnectionPool connectionPool = ConnectionPool.getConnectionPool(folder);
+                connectionPool.withFolder(folder, () -> {
+                    IMAPFolder imapFolder = (IMAPFolder) folder;
+                    for (int i = 0; i < uidSets.size(); i++) {
+                        moveMessages(imapFolder, uidSets.get(i));
+                        updateProgress(i + 1, uidSets.size());
+                    }
+                    return null;
+                });
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Method moves messages with passed UIDs to target folder.
+     * @param folder - open folder of the messages on the server
+     * @param uidSet - UIDs of the messages as IMAP UID set (e.g. "1:50,60")
+     * @throws Exception
+     */
+    private void moveMessages(IMAPFolder folder, String uidSet) throws Exception {
+        String targetFolderName = BASE64MailboxEncoder.encode(targetFolder.getFullName());
+        boolean moved = (Boolean) folder.doCommand(protocol -> {
+            Argument arguments = new Argument();
+            arguments.writeString(targetFolderName);
+            if (protocol.hasCapability("MOVE")) {
+                protocol.simpleCommand("UID MOVE " + uidSet, arguments);
+                return true;
+            }
+            protocol.simpleCommand("UID COPY " + uidSet, arguments);
+            return false;
+        });
+
+        // Messages are in target folder now. If removing copies from this folder fails, they are not added back
+        // to Email Table View - copies are marked deleted (or they come back when the folder is synchronized again).
+        for (long uid : UIDSet.toArray(UIDSet.parseUIDSets(uidSet))) {
+            movedUids.add(uid);
+        }
+
+        if (!moved) {
+            // Copied messages are removed from the folder: they are marked deleted and expunged (only these messages - UID EXPUNGE).
+            // Without UIDPLUS messages stay marked deleted, because EXPUNGE would remove all deleted messages of the folder.
+            long[] uids = UIDSet.toArray(UIDSet.parseUIDSets(uidSet));
+            FlagUpdateQueue.storeFlags(folder, uids, Flags.Flag.DELETED, true);
+            folder.doCommand(protocol -> {
+                if (protocol.hasCapability("UIDPLUS")) {
+                    protocol.uidexpunge(UIDSet.parseUIDSets(uidSet));
+                }
+                return null;
+            });
+        }
+    }
+}
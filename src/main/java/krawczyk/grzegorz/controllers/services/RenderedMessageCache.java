@@ -0,0 +1,129 @@
+package krawczyk.grzegorz.controllers.services;
+
+import krawczyk.grzegorz.controllers.persistence.CachedBody;
+import krawczyk.grzegorz.models.EmailMessage;
+
+import javax.mail.Folder;
+import java.lang.ref.SoftReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Class holds in memory contents of recently rendered email messages (see MessageRendererService),
+ * so going back to the message just viewed doesn't need to read or render it again.
+ * <hr></hr>
+ * Cache is limited by number of messages and by total number of characters of their contents -
+ * when any limit is exceeded, the least recently used messages are removed. Contents of moved or deleted messages
+ * are removed the same way - their keys are never used again (UID of deleted message isn't given to other message).
+ * Contents are kept as soft references, so garbage collector can remove them when memory is running out.
+ */
+public class RenderedMessageCache {
+
+    /**
+     * Content of one message and its length (which is known even when content was removed by garbage collector).
+     */
+    private static class Entry {
+        private final SoftReference<CachedBody> cachedBody;
+        private final int length;
+
+        private Entry(CachedBody cachedBody) {
+            this.cachedBody = new SoftReference<>(cachedBody);
+            this.length = cachedBody.getContent().length();
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxCharacters;
+    private long characters;
+
+    /**
+     * Contents of messages from the least recently used to the most recently used.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Constructor of RenderedMessageCache class.
+     * @param maxEntries    - maximal number of messages in the cache
+     * @param maxCharacters - maximal total number of characters of contents of messages in the cache
+     */
+    public RenderedMessageCache(int maxEntries, long maxCharacters) {
+        this.maxEntries = maxEntries;
+        this.maxCharacters = maxCharacters;
+    }
+
+    /**
+     * Method returns rendered content of the message.
+     * @param emailMessage - email message
+     * @return CachedBody - content of the message, or null if it isn't in the cache (or it was removed by garbage collector)
+     */
+    public synchronized CachedBody get(EmailMessage emailMessage) {
+        String key = getKey(emailMessage);
+        if (key == null) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        CachedBody cachedBody = entry.cachedBody.get();
+        if (cachedBody == null) {
+            remove(key);
+        }
+        return cachedBody;
+    }
+
+    /**
+     * Method adds rendered content of the message to the cache and removes the least recently used messages if cache is too big.
+     * @param emailMessage - email message
+     * @param cachedBody   - content of the message
+     */
+    public synchronized void put(EmailMessage emailMessage, CachedBody cachedBody) {
+        String key = getKey(emailMessage);
+        if (key == null) {
+            return;
+        }
+        remove(key);
+        Entry entry = new Entry(cachedBody);
+        entries.put(key, entry);
+        characters += entry.length;
+
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || characters > maxCharacters) && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            if (eldest.getValue() != entry) {
+                iterator.remove();
+                characters -= eldest.getValue().length;
+            }
+        }
+    }
+
+    /**
+     * Method removes contents of all messages from the cache (e.g. when heap is almost full - see MessageMemoryManager).
+     */
+    public synchronized void clear() {
+        entries.clear();
+        characters = 0;
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            characters -= entry.length;
+        }
+    }
+
+    /**
+     * Method returns key of the message in the cache - account, folder and UID of the message.
+     * @param emailMessage - email message
+     * @return String - key of the message, or null if message isn't in any folder yet (loaded from local file before the application
+     * connected to the server) - such message isn't kept in the cache
+     */
+    private String getKey(EmailMessage emailMessage) {
+        Folder folder = emailMessage.getFolder();
+        if (folder == null) {
+            return null;
+        }
+        return folder.getStore().getURLName() + "/" + folder.getFullName() + "/" + emailMessage.getUid();
+    }
+}
@@ -41,6 +41,15 @@ public class EmailAccount {
         properties.put("mail.smtps.host", "smtp.wp.pl");
         properties.put("mail.smtps.auth", "true");
         properties.put("outgoingHost", "smtp.wp.pl");
+
+        // number of messages which headers are downloaded with one command (used in FetchFolderService)
+        properties.put("fetchChunkSize", "500");
+        // number of messages loaded to a folder at once - next pages are loaded when user scrolls to the end of the list
+        properties.put("pageSize", "200");
+        // maximal number of connections to the server used at the same moment (see ConnectionPool)
+        properties.put("maxConnections", "4");
+        // maximal size (in bytes) of contents of messages and attachments saved in local cache (see MessageCache)
+        properties.put("messageCacheSize", String.valueOf(256L * 1024 * 1024));
     }
 
     public String getAddress() {
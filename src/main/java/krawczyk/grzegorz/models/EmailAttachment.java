@@ -0,0 +1,74 @@
+package krawczyk.grzegorz.models;
+
+import java.io.Serializable;
+
+/**
+ * Class represents attachment of email message in the application.
+ * <hr></hr>
+ * Attachments are known from structure of the message (BODYSTRUCTURE), which is fetched together with headers of the message
+ * (see FetchMessagesService.createFetchProfile()) - so they are known before content of the message is downloaded.
+ * Content of the attachment is downloaded only when user clicks it, and then it is saved in local cache (see MessageCache).
+ * <hr></hr>
+ * It is Serializable, because attachments are saved with headers of the message (see MessageHeader).
+ */
+public class EmailAttachment implements Serializable {
+
+    /**
+     * Version of format of saved object - it has to be changed only when saved objects can't be read anymore
+     * (new fields can be added without changing it).
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of the part of the message with the attachment (e.g. "2" or "1.3" for part of nested multipart) - IMAP section number.
+     */
+    private String partId;
+    private String fileName;
+    private String contentType;
+    private int size;
+
+    /**
+     * Hash (SHA-256) of the content of the attachment - name of the file in MessageCache. It is null if attachment wasn't downloaded yet.
+     * It is set by background thread which downloaded the attachment and read by thread which saves headers (see MessageHeader).
+     */
+    private volatile String contentHash;
+
+    /**
+     * Constructor of the class EmailAttachment.
+     * @param partId      - number of the part of the message with the attachment
+     * @param fileName    - name of the attachment file
+     * @param contentType - MIME type of the attachment (e.g. "application/pdf")
+     * @param size        - size of the attachment in the message (bytes, -1 if unknown)
+     */
+    public EmailAttachment(String partId, String fileName, String contentType, int size) {
+        this.partId = partId;
+        this.fileName = fileName;
+        // The same few types repeat in all messages - one String object is kept for each of them.
+        this.contentType = contentType.intern();
+        this.size = size;
+    }
+
+    public String getPartId() {
+        return partId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+}
@@ -1,15 +1,11 @@
 package krawczyk.grzegorz.models;
 
-import com.sun.glass.ui.Size;
-import javafx.beans.property.SimpleIntegerProperty;
-import javafx.beans.property.SimpleObjectProperty;
-import javafx.beans.property.SimpleStringProperty;
-
+import javax.mail.Folder;
+import javax.mail.FolderClosedException;
 import javax.mail.Message;
+import javax.mail.MessageRemovedException;
 import javax.mail.MessagingException;
-import javax.mail.internet.MimeBodyPart;
-import javax.mail.internet.MimeMessage;
-import java.util.ArrayList;
+import javax.mail.UIDFolder;
 import java.util.Date;
 import java.util.List;
 
@@ -17,22 +13,42 @@ import java.util.List;
  * Class represents email message in the app.
  * <hr></hr>
  * Email message fetched from server is different class - Message.
+ * <hr></hr>
+ * Folder can have hundreds of thousands of messages, so every EmailMessage is as small as possible:
+ * <ul>
+ *     <li>
+ *         values are kept in simple fields (size as int, send date as milliseconds). Email Table View creates objects
+ *         displayed in cells (SizeInteger, Date and properties - see PropertyValueFactory) only for visible rows,
+ *     </li>
+ *     <li>senders and recipients repeat in many messages, so one String object is kept for every address (see String.intern()),</li>
+ *     <li>Message from server side isn't kept - it is found by UID when it is needed (see getMessage()).</li>
+ * </ul>
+ * <hr></hr>
+ * The same EmailMessage object is kept in the state of its folder (changed by MailboxStore), in published snapshots
+ * (see FolderSnapshot) and in list displayed in Email Table View. Only read / unread state and folder of the message
+ * are changed after it is added to the folder (by writer thread of MailboxStore), so these fields are volatile -
+ * other threads always see their current values. All other fields don't change.
  */
 public class EmailMessage {
 
-    // TableView class in JavaFX doesn't support String. Instead, it supports SimpleProperty classes.
-    private SimpleStringProperty subject;
-    private SimpleStringProperty sender;
-    private SimpleStringProperty recipient;
-    private SimpleObjectProperty<SizeInteger> size;
-    private SimpleObjectProperty<Date> date;
-    private boolean wasRead;
-    // Message class represent actual email message from provider. This is pointer to email message from provider point of view.
-    private Message message;
-
-    // List of attachments in the message:
-    private List<MimeBodyPart> attachmentsList = new ArrayList<>();
-    private boolean hasAttachemnts = false;
+    /**
+     * Value of sentDate when send date of the message is unknown.
+     */
+    private static final long NO_DATE = Long.MIN_VALUE;
+
+    private String subject;
+    private String sender;
+    private String recipient;
+    private int size;
+    private long sentDate;
+    private volatile boolean wasRead;
+    // UID is identifier of the message in its folder on the server. It doesn't change when other messages are deleted.
+    private long uid;
+    // Folder on the server side in which the message is.
+    private volatile Folder folder;
+
+    // List of attachments in the message (known from structure of the message). Messages without attachments share one empty list.
+    private List<EmailAttachment> attachmentsList = List.of();
 
     /**
      * Constructor of the class EmailMessage. It creates email message in the app.
@@ -41,19 +57,18 @@ public class EmailMessage {
      * @param sender    - (String) sender of the message (email address)
      * @param recipient - (String) recipient of the message (email address)
      * @param size      - (int) size of the message (bytes)
-     * @param date      - (Date) send date of the message
+     * @param date      - (Date) send date of the message (null if it is unknown)
      * @param wasRead   - (boolean) information if the message was already read
-     * @param message   (Message) email message from server
+     * @param uid       - (long) UID of the message in its folder on the server
      */
-    public EmailMessage(String subject, String sender, String recipient, int size, Date date, boolean wasRead, Message message) {
-        this.subject = new SimpleStringProperty(subject);
-        this.sender = new SimpleStringProperty(sender);
-        this.recipient = new SimpleStringProperty(recipient);
-        this.size = new SimpleObjectProperty<SizeInteger>(new SizeInteger(size));
-        this.date = new SimpleObjectProperty<>(date);
-
+    public EmailMessage(String subject, String sender, String recipient, int size, Date date, boolean wasRead, long uid) {
+        this.subject = subject;
+        this.sender = sender == null ? null : sender.intern();
+        this.recipient = recipient == null ? null : recipient.intern();
+        this.size = size;
+        this.sentDate = date == null ? NO_DATE : date.getTime();
         this.wasRead = wasRead;
-        this.message = message;
+        this.uid = uid;
     }
 
     /**
@@ -62,7 +77,7 @@ public class EmailMessage {
      * @return String - subject of the message
      */
     public String getSubject() {
-        return subject.get();
+        return subject;
     }
 
     /**
@@ -71,7 +86,7 @@ public class EmailMessage {
      * @return String - sender of the message
      */
     public String getSender() {
-        return sender.get();
+        return sender;
     }
 
     /**
@@ -80,25 +95,25 @@ public class EmailMessage {
      * @return String - recipient of the message
      */
     public String getRecipient() {
-        return recipient.get();
+        return recipient;
     }
 
     /**
-     * Method returns size (in bytes) of the message
+     * Method returns size (in bytes) of the message - new object is created for every call (it is used only for displayed rows).
      *
      * @return SizeInteger - size of the message
      */
     public SizeInteger getSize() {
-        return size.get();
+        return new SizeInteger(size);
     }
 
     /**
-     * Method returns send date of the message
+     * Method returns send date of the message - new object is created for every call (it is used only for displayed rows).
      *
-     * @return Date - send date of the message
+     * @return Date - send date of the message, or null if it is unknown
      */
     public Date getDate() {
-        return date.get();
+        return sentDate == NO_DATE ? null : new Date(sentDate);
     }
 
     /**
@@ -120,23 +135,65 @@ public class EmailMessage {
     }
 
     /**
-     * Method returns email message (object representing email message on a server)
+     * Method returns UID of the message (identifier of the message in its folder on the server)
+     *
+     * @return long - UID of the message
+     */
+    public long getUid() {
+        return uid;
+    }
+
+    /**
+     * Method returns email message (object representing email message on a server).
+     * <hr></hr>
+     * The message is found in the folder by UID - folder keeps messages which it already knows, so usually no request is sent,
+     * but it may require request to server (e.g. after folder was opened again).
+     * <hr></hr>
+     * Messages can be found only in open folder - so it is called with folder borrowed from ConnectionPool
+     * (see ConnectionPool.withFolder()), which opens the folder again if it was closed.
      *
      * @return Message - email message (object representing email message on a server)
+     * @throws MessagingException - if message isn't connected to the server yet, its folder is closed (FolderClosedException)
+     *                            or message doesn't exist on the server anymore (MessageRemovedException)
      */
-    public Message getMessage() {
+    public Message getMessage() throws MessagingException {
+        if (folder == null) {
+            // Message loaded from local file before the application connected to the server (see LoadCachedAccountService).
+            throw new MessagingException("Message isn't connected to the server yet: " + uid);
+        }
+        if (!folder.isOpen()) {
+            throw new FolderClosedException(folder);
+        }
+
+        // Folder returns null if there is no message with the UID (it was removed, e.g. on other device).
+        Message message = ((UIDFolder) folder).getMessageByUID(uid);
+        if (message == null || message.isExpunged()) {
+            throw new MessageRemovedException("Message doesn't exist on the server anymore: " + uid);
+        }
         return message;
     }
 
+    public Folder getFolder() {
+        return folder;
+    }
+
+    /**
+     * Method sets folder (on the server side) in which the message is. It is used to find the message by UID.
+     *
+     * @param folder - Folder in which the message is
+     */
+    public void setFolder(Folder folder) {
+        this.folder = folder;
+    }
+
     /**
-     * Method adds attachment (mimeBodyPart) from the message (Message) to the list of attachments in the message (EmailMessage)
-     * and sets information, that message has attachments.
+     * Method sets attachments of the message (known from structure of the message). Previous attachments are replaced,
+     * so setting attachments again never duplicates them.
      *
-     * @param mimeBodyPart MimeBodyPart - attachment to the message
+     * @param attachments List<EmailAttachment> - all attachments of the message
      */
-    public void addAttachment(MimeBodyPart mimeBodyPart) {
-        this.hasAttachemnts = true;
-        this.attachmentsList.add(mimeBodyPart);
+    public void setAttachments(List<EmailAttachment> attachments) {
+        this.attachmentsList = attachments.isEmpty() ? List.of() : List.copyOf(attachments);
     }
 
     /**
@@ -145,14 +202,14 @@ public class EmailMessage {
      * @return Boolean - true if the message has attachments, false if hasn't
      */
     public boolean getHasAttachments() {
-        return this.hasAttachemnts;
+        return !this.attachmentsList.isEmpty();
     }
 
     /**
      * Method returns list of attachments of the email
-     * @return List<MimeBodyPart> - list of all attachments
+     * @return List<EmailAttachment> - list of all attachments
      */
-    public List<MimeBodyPart> getAttachmentsList() {
+    public List<EmailAttachment> getAttachmentsList() {
         return attachmentsList;
     }
 }
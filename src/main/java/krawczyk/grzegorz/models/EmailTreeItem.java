@@ -1,30 +1,131 @@
 package krawczyk.grzegorz.models;
 
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.control.TreeItem;
 
+import javax.mail.Address;
+import javax.mail.BodyPart;
 import javax.mail.Flags;
+import javax.mail.Folder;
 import javax.mail.Message;
 import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.UIDFolder;
 import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Class represents element to be displayed in Email Tree View in Main Window of the application.
  * It can be email account (address) as main folder or subfolder in this email account.
  * <hr></hr>
+ * Messages of the folder and numbers of its messages are changed only by writer thread of MailboxStore:
+ * <ul>
+ *     <li>methods changing them (e.g. addEmailMessages(), removeEmailMessages(), updateWasRead()) can be called from any thread - they only send event to MailboxStore,</li>
+ *     <li>methods reading them (e.g. getLoadedEmailMessages(), containsUid()) read the newest published snapshot (see FolderSnapshot),</li>
+ *     <li>list displayed in Email Table View (see getEmailMessages()) is updated from the newest snapshot in JavaFX thread.</li>
+ * </ul>
+ Changes are cheap in the state of MailboxStore (e.g. removed messages are found by UIDs - see removeEmailMessages()),
+ * but every published snapshot with added or removed messages has its own copy of the list - so such batch of changes
+ * is O(n) in number of loaded messages, even if it removes only few of them (see publishSnapshot()).
+ * <hr></hr>
  * Class extends TreeItem class.
  * @param <String>
  */
 public class EmailTreeItem<String> extends TreeItem<String> {
+
+    /**
+     * Maximal number of messages added to emailMessages in one animation pulse (see applySnapshot()).
+     * Rest of them waits for next pulse, so one pulse doesn't take too long.
+     */
+    private static final int MAX_MESSAGES_PER_PULSE = 2000;
+
     private String name;
 
     /**
-     * List of email messages inside a folder
+     * Folder on the server side which is displayed by this EmailTreeItem (null for email account main folder).
+     */
+    private volatile Folder folder;
+
+    /**
+     * List of email messages inside a folder displayed in Email Table View - it is changed only in JavaFX thread.
      */
     private ObservableList<EmailMessage> emailMessages;
 
+    /**
+     * State of the folder owned by writer thread of MailboxStore - it is used only in events applied by MailboxStore.
+     * <hr></hr>
+     * Messages are always sorted from the newest (the highest UID) to the oldest, and indexed by UIDs.
+     */
+    private final List<EmailMessage> storedEmailMessages = new ArrayList<>();
+    private final Map<Long, EmailMessage> storedEmailMessagesByUid = new HashMap<>();
+    private int totalMessagesCount;
     private int unreadMessagesCount;
+    private long uidNext;
+
+    /**
+     * Information if messages were added or removed since last published snapshot - only then list of messages is copied
+     * to new snapshot (changes of read / unread state and numbers of messages don't copy it). It is used only by MailboxStore.
+     */
+    private boolean storedEmailMessagesChanged = false;
+
+    /**
+     * The newest state of the folder published by MailboxStore. It is read by all other threads.
+     */
+    private volatile FolderSnapshot snapshot = FolderSnapshot.EMPTY;
+
+    /**
+     * List of messages of the snapshot which is fully displayed in emailMessages - used only in JavaFX thread.
+     * If next snapshot has the same list, only changed rows are refreshed (see applySnapshot()).
+     */
+    private List<EmailMessage> displayedSnapshotMessages = null;
+
+    /**
+     * UIDs of messages which changed (e.g. read / unread) - their rows in Email Table View are refreshed with next animation pulse.
+     */
+    private Queue<Long> changedUids = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Email Table View is updated from the newest snapshot by flushTimer - at most once per animation pulse,
+     * so it is refreshed once per pulse, not once per event.
+     */
+    private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private AnimationTimer flushTimer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            applySnapshot();
+        }
+    };
+
+    /**
+     * Information if first page of messages was already fetched from server (or loaded from local file and synchronized with server).
+     */
+    private volatile boolean firstPageLoaded = false;
+
+    /**
+     * Information if there are messages in the folder older than loaded ones.
+     * Messages are loaded page by page from the newest, so next page starts below the lowest loaded UID.
+     */
+    private volatile boolean moreMessages = true;
+
+    /**
+     * Loader of the next page of messages. It is set by the service which fetches messages to this folder.
+     */
+    private Runnable nextPageLoader;
 
     /**
      * Constructor of the class EmailTreeItem.
@@ -37,76 +138,477 @@ public class EmailTreeItem<String> extends TreeItem<String> {
     }
 
     /**
-     * Method creates email message in the application and adds it to the TOP of the list of messages in current folder.
+     * Method adds email messages to the END of the list of messages in current folder.
      * <hr></hr>
-     * This method gets and object of the class Message (which is an email message on the email server provider side)
-     * and transforms it to object of the class EmailMessage (which is and email message inside the app)
-     * @param message - object of the class Message (email on email account provider side)
-     * @throws MessagingException
+     * It can be called from any thread - messages are added by MailboxStore, and they are displayed with next animation pulse.
+     * Messages which are already in the list (e.g. added as new messages at the same time) are skipped.
+     * @param newEmailMessages - email messages (e.g. page fetched from server or headers saved in local file), from the newest to the oldest
      */
-    public void addEmail(Message message) throws MessagingException {
-        EmailMessage emailMessage = fetchMessage(message);
-        this.emailMessages.add(emailMessage);
+    public void addEmailMessages(List<EmailMessage> newEmailMessages) {
+        MailboxStore.submit(() -> storeEmailMessages(newEmailMessages, false));
     }
 
     /**
-     * Method creates email message in the application and adds it to the END of the list of messages in current folder.
+     * Method adds email messages saved in local file (see LoadCachedAccountService) to the list of messages in current folder -
+     * but only if the folder isn't connected to the server yet. Connected folder loads saved messages itself
+     * (see FetchMessagesService), and they could be already out of date.
      * <hr></hr>
-     * This method gets and object of the class Message (which is an email message on the email server provider side)
-     * and transforms it to object of the class EmailMessage (which is and email message inside the app)
-     * @param message - object of the class Message (email on email account provider side)
-     * @throws MessagingException
+     * It can be called from any thread - like addEmailMessages().
+     * @param savedEmailMessages - email messages saved in local file, from the newest to the oldest
+     */
+    public void addSavedEmailMessages(List<EmailMessage> savedEmailMessages) {
+        MailboxStore.submit(() -> {
+            // Folder is set before FetchMessagesService sends any change, so changes sent later are applied after these messages.
+            if (folder == null) {
+                storeEmailMessages(savedEmailMessages, false);
+            }
+        });
+    }
+
+    /**
+     * Method adds new email messages (which came to the folder on the server) to the TOP of the list of messages in current folder.
+     * New messages are not counted in last STATUS yet, so they are added to numbers of messages in the folder.
+     * <hr></hr>
+     * It can be called from any thread - like addEmailMessages().
+     * @param newEmailMessages - new email messages, from the newest to the oldest
+     */
+    public void addEmailMessagesToTop(List<EmailMessage> newEmailMessages) {
+        MailboxStore.submit(() -> storeEmailMessages(newEmailMessages, true));
+    }
+
+    /**
+     * Method removes all messages from the list of messages in current folder (e.g. messages loaded from local file which are out of date).
+     * <hr></hr>
+     * It can be called from any thread - list is cleared in order with messages added earlier and later.
+     */
+    public void clearEmailMessages() {
+        MailboxStore.submit(() -> {
+            storedEmailMessages.clear();
+            storedEmailMessagesByUid.clear();
+            storedEmailMessagesChanged = true;
+            MailboxStore.changed(this);
+        });
+    }
+
+    /**
+     * Method adds email messages to the state of the folder (messages stay sorted by UIDs). It is called by MailboxStore.
+     * <hr></hr>
+     * Usually all messages are older than loaded ones (next page) or newer (new messages), so they are added with one addAll().
+     * Otherwise both lists are merged.
+     * @param newEmailMessages - email messages, from the newest to the oldest
+     * @param toTop            - true if messages came to the folder on the server right now
+     */
+    private void storeEmailMessages(List<EmailMessage> newEmailMessages, boolean toTop) {
+        List<EmailMessage> acceptedEmailMessages = new ArrayList<>();
+        for (EmailMessage emailMessage : newEmailMessages) {
+            emailMessage.setFolder(folder);
+            if (storedEmailMessagesByUid.putIfAbsent(emailMessage.getUid(), emailMessage) == null) {
+                acceptedEmailMessages.add(emailMessage);
+                if (toTop) {
+                    totalMessagesCount++;
+                    if (!emailMessage.getWasRead()) {
+                        unreadMessagesCount++;
+                    }
+                }
+            }
+        }
+        if (acceptedEmailMessages.isEmpty()) {
+            return;
+        }
+        acceptedEmailMessages.sort((first, second) -> Long.compare(second.getUid(), first.getUid()));
+
+        long newestUid = acceptedEmailMessages.get(0).getUid();
+        long oldestUid = acceptedEmailMessages.get(acceptedEmailMessages.size() - 1).getUid();
+        if (storedEmailMessages.isEmpty() || oldestUid > storedEmailMessages.get(0).getUid()) {
+            storedEmailMessages.addAll(0, acceptedEmailMessages);
+        } else if (newestUid < storedEmailMessages.get(storedEmailMessages.size() - 1).getUid()) {
+            storedEmailMessages.addAll(acceptedEmailMessages);
+        } else {
+            List<EmailMessage> mergedEmailMessages = new ArrayList<>(storedEmailMessages.size() + acceptedEmailMessages.size());
+            int stored = 0;
+            int accepted = 0;
+            while (stored < storedEmailMessages.size() || accepted < acceptedEmailMessages.size()) {
+                if (accepted == acceptedEmailMessages.size() || (stored < storedEmailMessages.size()
+                        && storedEmailMessages.get(stored).getUid() > acceptedEmailMessages.get(accepted).getUid())) {
+                    mergedEmailMessages.add(storedEmailMessages.get(stored++));
+                } else {
+                    mergedEmailMessages.add(acceptedEmailMessages.get(accepted++));
+                }
+            }
+            storedEmailMessages.clear();
+            storedEmailMessages.addAll(mergedEmailMessages);
+        }
+        storedEmailMessagesChanged = true;
+        MailboxStore.changed(this);
+    }
+
+    /**
+     * Method removes email messages with passed UIDs (deleted from the folder on the server or by the user)
+     * from the list of messages in current folder. UIDs of messages which are not loaded are skipped.
+     * <hr></hr>
+     * It can be called from any thread - messages are removed by MailboxStore, and Email Table View removes
+     * neighbouring rows together (see applySnapshot()).
+     * <hr></hr>
+     * Rows of removed messages are found by binary search (list is sorted by UIDs), and then the list is compacted with
+     * one pass which starts at the first removed row - rows above it (usually the newest messages) are not touched,
+     * and the rest isn't scanned for every removed message. Published snapshot is still copied once
+     * for all events applied together (see publishSnapshot()).
+     * @param uids - UIDs of deleted messages
+     */
+    public void removeEmailMessages(Collection<Long> uids) {
+        Set<Long> removedUids = new HashSet<>(uids);
+        MailboxStore.submit(() -> {
+            int[] removedRows = new int[removedUids.size()];
+            int removedCount = 0;
+            for (long uid : removedUids) {
+                EmailMessage emailMessage = storedEmailMessagesByUid.remove(uid);
+                if (emailMessage != null) {
+                    removedRows[removedCount++] = FolderSnapshot.findRow(storedEmailMessages, uid);
+                    totalMessagesCount--;
+                    if (!emailMessage.getWasRead()) {
+                        unreadMessagesCount--;
+                    }
+                }
+            }
+            if (removedCount > 0) {
+                Arrays.sort(removedRows, 0, removedCount);
+                int writeRow = removedRows[0];
+                int nextRemoved = 0;
+                for (int readRow = removedRows[0]; readRow < storedEmailMessages.size(); readRow++) {
+                    if (nextRemoved < removedCount && removedRows[nextRemoved] == readRow) {
+                        nextRemoved++;
+                    } else {
+                        storedEmailMessages.set(writeRow++, storedEmailMessages.get(readRow));
+                    }
+                }
+                storedEmailMessages.subList(writeRow, storedEmailMessages.size()).clear();
+                storedEmailMessagesChanged = true;
+                MailboxStore.changed(this);
+            }
+        });
+    }
+
+    /**
+     * Method adds removed email message back to the list (e.g. when it couldn't be deleted on the server) - in the row
+     * which keeps the list sorted by UIDs. Numbers of messages in the folder are increased again.
+     * <hr></hr>
+     * It can be called from any thread.
+     * @param emailMessage - email message removed by removeEmailMessages()
+     */
+    public void restoreEmailMessage(EmailMessage emailMessage) {
+        MailboxStore.submit(() -> {
+            if (storedEmailMessagesByUid.putIfAbsent(emailMessage.getUid(), emailMessage) != null) {
+                return;
+            }
+            int row = FolderSnapshot.findRow(storedEmailMessages, emailMessage.getUid());
+            storedEmailMessages.add(-(row + 1), emailMessage);
+            totalMessagesCount++;
+            if (!emailMessage.getWasRead()) {
+                unreadMessagesCount++;
+            }
+            storedEmailMessagesChanged = true;
+            MailboxStore.changed(this);
+        });
+    }
+
+    /**
+     * Method publishes current state of the folder as new snapshot and makes sure flushTimer is running,
+     * so Email Table View is updated with next animation pulse.
+     * <hr></hr>
+     * It is called by MailboxStore after events are applied. List of messages is copied once for all events applied together,
+     * and only if messages were added or removed - when only read / unread states or numbers of messages changed,
+     * new snapshot shares list with previous one (changed messages are sent to JavaFX thread in changedUids).
+     * <hr></hr>
+     * Copy is O(n) in number of loaded messages (only references are copied) - it is the price of immutable snapshots,
+     * which every thread reads without locks. So batch of removed messages costs one copy of the list, not O(k),
+     * no matter how few messages were removed.
+     */
+    void publishSnapshot() {
+        List<EmailMessage> snapshotEmailMessages = storedEmailMessagesChanged
+                ? List.copyOf(storedEmailMessages) : snapshot.emailMessages();
+        storedEmailMessagesChanged = false;
+        snapshot = new FolderSnapshot(snapshotEmailMessages, totalMessagesCount, unreadMessagesCount, uidNext);
+        scheduleFlush();
+    }
+
+    /**
+     * Method makes sure flushTimer is running. AnimationTimer is started in JavaFX thread and it stops itself
+     * when Email Table View displays the newest snapshot.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            Platform.runLater(flushTimer::start);
+        }
+    }
+
+    /**
+     * Method updates list of messages displayed in Email Table View to the newest snapshot. It is called by flushTimer in JavaFX thread.
+     * <hr></hr>
+     * Both lists are sorted by UIDs, so they are compared row by row - every range of neighbouring added rows is added
+     * with one addAll() and every range of removed rows is removed with one remove(). Snapshots published between
+     * two pulses are skipped - only the newest one is displayed.
+     * At most MAX_MESSAGES_PER_PULSE messages are added in one pulse - the rest is added with next pulses.
+     * <hr></hr>
+     * If list of messages of the snapshot is already displayed (e.g. only read / unread state changed), lists are not compared -
+     * only rows of changed messages are refreshed.
+     */
+    private void applySnapshot() {
+        FolderSnapshot appliedSnapshot = snapshot;
+        List<EmailMessage> newEmailMessages = appliedSnapshot.emailMessages();
+        int addedCount = 0;
+        int row = 0;
+        int newRow = newEmailMessages == displayedSnapshotMessages ? newEmailMessages.size() : 0;
+
+        while (newRow < newEmailMessages.size() && addedCount < MAX_MESSAGES_PER_PULSE) {
+            if (row == emailMessages.size()) {
+                int end = Math.min(newEmailMessages.size(), newRow + MAX_MESSAGES_PER_PULSE - addedCount);
+                emailMessages.addAll(newEmailMessages.subList(newRow, end));
+                addedCount += end - newRow;
+                row += end - newRow;
+                newRow = end;
+                continue;
+            }
+
+            EmailMessage emailMessage = emailMessages.get(row);
+            long newUid = newEmailMessages.get(newRow).getUid();
+            if (emailMessage.getUid() == newUid) {
+                if (emailMessage != newEmailMessages.get(newRow)) {
+                    emailMessages.set(row, newEmailMessages.get(newRow));
+                }
+                row++;
+                newRow++;
+            } else if (emailMessage.getUid() > newUid) {
+                // Messages which are not in the snapshot anymore were removed.
+                int end = row + 1;
+                while (end < emailMessages.size() && emailMessages.get(end).getUid() > newUid) {
+                    end++;
+                }
+                emailMessages.remove(row, end);
+            } else {
+                // Messages which are not displayed yet were added.
+                int end = newRow + 1;
+                while (end < newEmailMessages.size() && end - newRow < MAX_MESSAGES_PER_PULSE - addedCount
+                        && newEmailMessages.get(end).getUid() > emailMessage.getUid()) {
+                    end++;
+                }
+                emailMessages.addAll(row, newEmailMessages.subList(newRow, end));
+                addedCount += end - newRow;
+                row += end - newRow;
+                newRow = end;
+            }
+        }
+        boolean complete = newRow == newEmailMessages.size();
+        if (complete && newEmailMessages != displayedSnapshotMessages) {
+            if (row < emailMessages.size()) {
+                emailMessages.remove(row, emailMessages.size());
+            }
+            displayedSnapshotMessages = newEmailMessages;
+        }
+
+        // Setting the same object again refreshes row in Email Table View (bold or not).
+        Long changedUid;
+        while ((changedUid = changedUids.poll()) != null) {
+            int changedRow = FolderSnapshot.findRow(emailMessages, changedUid);
+            if (changedRow >= 0) {
+                emailMessages.set(changedRow, emailMessages.get(changedRow));
+            }
+        }
+        updateName(appliedSnapshot.unreadMessagesCount());
+
+        if (complete && appliedSnapshot == snapshot) {
+            flushTimer.stop();
+            flushScheduled.set(false);
+            // MailboxStore could publish new snapshot after it was checked, but before flushScheduled was cleared.
+            if ((appliedSnapshot != snapshot || !changedUids.isEmpty()) && flushScheduled.compareAndSet(false, true)) {
+                flushTimer.start();
+            }
+        }
+    }
+
+    /**
+     * Method returns the newest published state of the folder. It can be called from any thread.
+     * @return FolderSnapshot - immutable state of the folder
+     */
+    public FolderSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Method waits until all changes sent to MailboxStore before are applied, so snapshot contains them
+     * (e.g. before loaded messages are saved to local file). It can't be called in JavaFX thread.
+     */
+    public void awaitUpdates() {
+        MailboxStore.awaitEvents();
+    }
+
+    /**
+     * Method returns information if message with passed UID is loaded to the list of messages in current folder.
+     * @param uid - UID of the message
+     * @return boolean - true if message is loaded
+     */
+    public boolean containsUid(long uid) {
+        return snapshot.findRow(uid) >= 0;
+    }
+
+    /**
+     * Method returns UIDs of all loaded messages.
+     * @return Set<Long> - copy of UIDs of loaded messages
+     */
+    public Set<Long> getLoadedUids() {
+        return snapshot.getUids();
+    }
+
+    /**
+     * Method returns all loaded email messages (also the ones not displayed yet), from the newest to the oldest.
+     * <hr></hr>
+     * It can be called from any thread.
+     * @return List<EmailMessage> - immutable list of loaded email messages
      */
-    public void addEmailToTop(Message message) throws MessagingException {
-        EmailMessage emailMessage = fetchMessage(message);
-        this.emailMessages.add(0,emailMessage);
+    public List<EmailMessage> getLoadedEmailMessages() {
+        return snapshot.emailMessages();
     }
 
     /**
      * Method creates new EmailMessage object (which is and email message inside the app)
      * from Message object (which is an email message on the email server provider side)
+     * <hr></hr>
+     * If headers of the message were fetched earlier (FetchFolderService fetches them in chunks with FetchProfile),
+     * all values are taken from that fetched data and no more requests to server are sent.
+     * Headers can be fetched in background thread, and created EmailMessage added to the list later (in JavaFX thread).
      * @param message - object of the class Message (email on email account provider side)
+     * @return EmailMessage - email message inside the app
      * @throws MessagingException
      */
-    private EmailMessage fetchMessage(Message message) throws MessagingException {
+    public EmailMessage createEmailMessage(Message message) throws MessagingException {
         boolean messageWasRead = message.getFlags().contains(Flags.Flag.SEEN);
         EmailMessage emailMessage = new EmailMessage(
                 message.getSubject(),
-                message.getFrom()[0].toString(),
-                message.getRecipients(MimeMessage.RecipientType.TO)[0].toString(),
+                firstAddress(message.getFrom()),
+                firstAddress(message.getRecipients(MimeMessage.RecipientType.TO)),
                 message.getSize(),
                 message.getSentDate(),
                 messageWasRead,
-                message
+                ((UIDFolder) message.getFolder()).getUID(message)
         );
+        emailMessage.setAttachments(readAttachments(message));
+
+        return emailMessage;
+    }
 
-        if (!messageWasRead) {
-            incrementMessageCount();
+    /**
+     * Method returns attachments of the message read from structure of the message (BODYSTRUCTURE fetched with headers),
+     * so content of the message isn't downloaded.
+     * @param message - object of the class Message (email on email account provider side)
+     * @return List<EmailAttachment> - attachments of the message (empty if it has none)
+     * @throws MessagingException
+     */
+    private List<EmailAttachment> readAttachments(Message message) throws MessagingException {
+        List<EmailAttachment> attachments = new ArrayList<>();
+        if (message.isMimeType("multipart/*")) {
+            try {
+                // For IMAP message with known structure, Multipart is created from the structure - parts are not downloaded.
+                readAttachments((Multipart) message.getContent(), "", attachments);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
         }
+        return attachments;
+    }
 
-        return emailMessage;
+    /**
+     * Method recursively adds attachments from passed Multipart (and its nested Multiparts) to the list.
+     * @param multipart   - object of class Multipart (content of the message or of its part)
+     * @param prefix      - number of the part containing the Multipart followed by dot (empty for content of the message)
+     * @param attachments - list to which attachments are added
+     * @throws MessagingException
+     * @throws IOException
+     */
+    private void readAttachments(Multipart multipart, java.lang.String prefix, List<EmailAttachment> attachments) throws MessagingException, IOException {
+        for (int i = 0; i < multipart.getCount(); i++) {
+            BodyPart bodyPart = multipart.getBodyPart(i);
+            java.lang.String partId = prefix + (i + 1);
+            if (bodyPart.isMimeType("multipart/*")) {
+                readAttachments((Multipart) bodyPart.getContent(), partId + ".", attachments);
+            } else if (Part.ATTACHMENT.equalsIgnoreCase(bodyPart.getDisposition()) || bodyPart.getFileName() != null) {
+                java.lang.String contentType = bodyPart.getContentType();
+                int parametersStart = contentType.indexOf(';');
+                if (parametersStart >= 0) {
+                    contentType = contentType.substring(0, parametersStart);
+                }
+                java.lang.String fileName = bodyPart.getFileName() != null ? bodyPart.getFileName() : "attachment-" + partId;
+                attachments.add(new EmailAttachment(partId, fileName, contentType.trim().toLowerCase(), bodyPart.getSize()));
+            }
+        }
     }
 
     /**
-     * Method increases number of unread messages in the folder in Email Tree View and updates it in View.
+     * Method returns first address from passed array as String.
+     * Envelope of the message can have no sender or no recipient (e.g. only BCC), so array can be null or empty.
+     * @param addresses - array of addresses (from envelope of the message)
+     * @return String - first address or empty String if there are no addresses
      */
-    public void incrementMessageCount() {
-        unreadMessagesCount++;
-        updateName();
+    private java.lang.String firstAddress(Address[] addresses) {
+        if (addresses == null || addresses.length == 0) {
+            return "";
+        }
+        return addresses[0].toString();
     }
 
     /**
-     * Method decreases number of unread messages in the folder in Email Tree View and updates it in View.
+     * Method updates read / unread state of the message with passed UID (changed on the server, e.g. on other device,
+     * or by the user) and number of unread messages in the folder.
+     * <hr></hr>
+     * It can be called from any thread - message is changed by MailboxStore and its row is refreshed with next animation pulse.
+     * @param uid     - UID of the message
+     * @param wasRead - true if the message is read now, false if it isn't
      */
-    public void decrementMessageCount() {
-        unreadMessagesCount--;
-        updateName();
+    public void updateWasRead(long uid, boolean wasRead) {
+        MailboxStore.submit(() -> {
+            EmailMessage emailMessage = storedEmailMessagesByUid.get(uid);
+            if (emailMessage == null || emailMessage.getWasRead() == wasRead) {
+                return;
+            }
+            emailMessage.setWasRead(wasRead);
+            if (wasRead) {
+                unreadMessagesCount--;
+            } else {
+                unreadMessagesCount++;
+            }
+            changedUids.add(uid);
+            MailboxStore.changed(this);
+        });
+    }
+
+    /**
+     * Method sets numbers of messages in the folder (taken from server with STATUS command) and updates it in View.
+     * <hr></hr>
+     * It can be called from any thread.
+     * @param totalMessagesCount  - number of all messages in the folder
+     * @param unreadMessagesCount - number of unread messages in the folder
+     * @param uidNext             - UID which next new message in the folder will get
+     */
+    public void setStatus(int totalMessagesCount, int unreadMessagesCount, long uidNext) {
+        MailboxStore.submit(() -> {
+            this.totalMessagesCount = totalMessagesCount;
+            this.unreadMessagesCount = unreadMessagesCount;
+            this.uidNext = uidNext;
+            MailboxStore.changed(this);
+        });
+    }
+
+    public int getTotalMessagesCount() {
+        return snapshot.totalMessagesCount();
+    }
+
+    public long getUidNext() {
+        return snapshot.uidNext();
     }
 
     /**
      * Method updates name of the folder displayed in the Email Tree View based on number of unread messages it hat folder.
+     * @param unreadMessagesCount - number of unread messages in the folder
      */
-    private void updateName () {
+    private void updateName (int unreadMessagesCount) {
         if (unreadMessagesCount > 0) {
             this.setValue((String) (this.name + "(" +unreadMessagesCount + ")"));
         } else {
@@ -114,6 +616,91 @@ public class EmailTreeItem<String> extends TreeItem<String> {
         }
     }
 
+    /**
+     * Method loads first page of (the newest) messages to the folder - if no messages were loaded yet.
+     * <hr></hr>
+     * It is called from MainWindowController when user selects the folder in Email Tree View.
+     * Folder is opened on the server only then.
+     */
+    public void loadFirstPage() {
+        if (!firstPageLoaded) {
+            loadNextPage();
+        }
+    }
+
+    /**
+     * Method loads next page of (older) messages to the folder - if there are any messages not loaded yet.
+     * <hr></hr>
+     * It is called from MainWindowController when user scrolls Email Table View to the end.
+     */
+    public void loadNextPage() {
+        if (nextPageLoader != null && hasMoreMessages()) {
+            nextPageLoader.run();
+        }
+    }
+
+    /**
+     * Method returns information if there are messages in the folder which are not loaded yet.
+     * @return boolean - true if there are older messages to load
+     */
+    public boolean hasMoreMessages() {
+        return moreMessages;
+    }
+
+    public void setMoreMessages(boolean moreMessages) {
+        this.moreMessages = moreMessages;
+    }
+
+    public boolean isFirstPageLoaded() {
+        return firstPageLoaded;
+    }
+
+    public void setFirstPageLoaded(boolean firstPageLoaded) {
+        this.firstPageLoaded = firstPageLoaded;
+    }
+
+    public Folder getFolder() {
+        return folder;
+    }
+
+    /**
+     * Method sets folder on the server side displayed by this EmailTreeItem.
+     * Messages loaded earlier (e.g. from local file, before the application connected to the server) are moved to this folder too.
+     * @param folder - Folder in Store
+     */
+    public void setFolder(Folder folder) {
+        this.folder = folder;
+        MailboxStore.submit(() -> {
+            for (EmailMessage emailMessage : storedEmailMessages) {
+                emailMessage.setFolder(folder);
+            }
+        });
+    }
+
+    /**
+     * Method returns name of the folder (without number of unread messages displayed in Email Tree View).
+     * @return String - name of the folder
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getUnreadMessagesCount() {
+        return snapshot.unreadMessagesCount();
+    }
+
+    /**
+     * Method returns information if any messages are loaded to the folder (also the ones not displayed yet).
+     * @return boolean - true if there are loaded messages
+     */
+    public boolean hasLoadedEmailMessages() {
+        return !snapshot.emailMessages().isEmpty();
+    }
+
+    public void setNextPageLoader(Runnable nextPageLoader) {
+        this.nextPageLoader = nextPageLoader;
+    }
+
     /**
      * Method returns list of email messages inside a folder.
      * @return ObservableList<EmailMessage> - list of email messages in the folder.
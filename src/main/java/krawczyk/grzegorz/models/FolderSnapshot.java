@@ -0,0 +1,81 @@
+package krawczyk.grzegorz.models;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable state of one folder published by MailboxStore - loaded email messages and numbers of messages in the folder.
+ * <hr></hr>
+ * Snapshot is never changed, so it can be read by any thread (also while MailboxStore applies new events).
+ * Messages are sorted from the newest (the highest UID) to the oldest, so message is found with binary search.
+ * <hr></hr>
+ * List of messages is immutable, but messages in it are not copied - their read / unread state can change later
+ * (see EmailMessage). So snapshot published after only read / unread states changed shares list with previous snapshot.
+ *
+ * @param emailMessages       - loaded email messages, from the newest to the oldest
+ * @param totalMessagesCount  - number of all messages in the folder
+ * @param unreadMessagesCount - number of unread messages in the folder
+ * @param uidNext             - UID which next new message in the folder will get
+ */
+public record FolderSnapshot(List<EmailMessage> emailMessages, int totalMessagesCount, int unreadMessagesCount, long uidNext) {
+
+    /**
+     * Snapshot of folder without any messages.
+     */
+    static final FolderSnapshot EMPTY = new FolderSnapshot(List.of(), 0, 0, 0);
+
+    /**
+     * Method finds row of the message with passed UID.
+     * @param uid - UID of the message
+     * @return int - number of the row, or negative number if message is not loaded
+     */
+    public int findRow(long uid) {
+        return findRow(emailMessages, uid);
+    }
+
+    /**
+     * Method finds message with passed UID.
+     * @param uid - UID of the message
+     * @return EmailMessage - email message, or null if it is not loaded
+     */
+    public EmailMessage find(long uid) {
+        int row = findRow(uid);
+        return row >= 0 ? emailMessages.get(row) : null;
+    }
+
+    /**
+     * Method returns UIDs of all loaded messages.
+     * @return Set<Long> - new set with UIDs of loaded messages
+     */
+    public Set<Long> getUids() {
+        Set<Long> uids = new HashSet<>();
+        for (EmailMessage emailMessage : emailMessages) {
+            uids.add(emailMessage.getUid());
+        }
+        return uids;
+    }
+
+    /**
+     * Method finds row of the message with passed UID in list sorted by UIDs from the highest (binary search).
+     * @param emailMessages - email messages, from the newest to the oldest
+     * @param uid           - UID of the message
+     * @return int - number of the row, or -(insertion row + 1) if there is no such message
+     */
+    static int findRow(List<EmailMessage> emailMessages, long uid) {
+        int low = 0;
+        int high = emailMessages.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleUid = emailMessages.get(middle).getUid();
+            if (middleUid == uid) {
+                return middle;
+            } else if (middleUid > uid) {
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return -(low + 1);
+    }
+}
@@ -0,0 +1,133 @@
+package krawczyk.grzegorz.models;
+
+import javax.mail.Folder;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Class is the only place where state of mailboxes (messages of folders, numbers of messages, list of folders) is changed.
+ * <hr></hr>
+ * Changes come from many threads - services fetching messages, javax.mail listeners (new, deleted and changed messages),
+ * FlagUpdateQueue and JavaFX thread. They don't change the state themselves - they send events to the store (see submit()),
+ * and all events are applied one by one, in order in which they were sent, by one writer thread.
+ * So state of mailboxes doesn't need any locks and it can't be changed by two threads at the same moment.
+ * <hr></hr>
+ * After the writer applies all waiting events, every changed folder publishes immutable snapshot of its state
+ * (see FolderSnapshot and EmailTreeItem.publishSnapshot()). Other threads read only snapshots, and Email Table View
+ * is updated from the newest snapshot in JavaFX thread.
+ */
+public class MailboxStore {
+
+    /**
+     * Events waiting to be applied by the writer thread.
+     */
+    private static final BlockingQueue<Runnable> events = new LinkedBlockingQueue<>();
+
+    /**
+     * Folders changed by events applied since last snapshots were published - used only by the writer thread.
+     */
+    private static final Set<EmailTreeItem<?>> changedFolders = new LinkedHashSet<>();
+
+    /**
+     * All folders in the application (folders from server side) - immutable list replaced by the writer thread.
+     */
+    private static volatile List<Folder> folders = List.of();
+
+    private static final Thread writerThread = new Thread(MailboxStore::applyEvents, "mailbox-store");
+
+    static {
+        // Writer thread is daemon thread, so it doesn't keep the application working after main window is closed.
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Method sends event to the store. It can be called from any thread - event is applied later by the writer thread.
+     * @param event - change of the state of mailboxes
+     */
+    static void submit(Runnable event) {
+        events.add(event);
+    }
+
+    /**
+     * Method waits until all events sent before (by any thread) are applied and their snapshots are published.
+     * <hr></hr>
+     * It is used by background threads which read snapshot right after they changed the state (e.g. to save it to local file).
+     * It must not be called by the writer thread or by JavaFX thread.
+     */
+    static void awaitEvents() {
+        CompletableFuture<Void> applied = new CompletableFuture<>();
+        // Snapshots are published when queue is empty - event added later is applied after them.
+        submit(() -> submit(() -> applied.complete(null)));
+        applied.join();
+    }
+
+    /**
+     * Method marks folder as changed, so its snapshot is published after waiting events are applied.
+     * It is called only by the writer thread.
+     * @param emailTreeItem - changed folder
+     */
+    static void changed(EmailTreeItem<?> emailTreeItem) {
+        changedFolders.add(emailTreeItem);
+    }
+
+    /**
+     * Method adds folder (from server side) to the list of all folders in the application.
+     * <hr></hr>
+     * It is called in FetchFolderService for every fetched folder.
+     * @param folder - object of the class Folder - folder in Store
+     */
+    public static void addFolder(Folder folder) {
+        submit(() -> {
+            List<Folder> newFolders = new ArrayList<>(folders);
+            newFolders.add(folder);
+            folders = List.copyOf(newFolders);
+        });
+    }
+
+    /**
+     * Method returns all folders in the application. List doesn't change, so it can be iterated by any thread.
+     * @return List<Folder> - snapshot of the list of all folders
+     */
+    public static List<Folder> getFolders() {
+        return folders;
+    }
+
+    /**
+     * Method applies events sent to the store - it is the only code which runs in the writer thread.
+     * <hr></hr>
+     * All events waiting in the queue are applied at once, and only then snapshots of changed folders are published,
+     * so many events sent at the same moment (e.g. chunks of fetched messages) publish only one snapshot.
+     */
+    private static void applyEvents() {
+        List<Runnable> waitingEvents = new ArrayList<>();
+        while (true) {
+            try {
+                waitingEvents.add(events.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            events.drainTo(waitingEvents);
+
+            for (Runnable event : waitingEvents) {
+                try {
+                    event.run();
+                } catch (Exception e) {
+                    // Wrong event doesn't stop the writer - other events are still applied.
+                    e.printStackTrace();
+                }
+            }
+            waitingEvents.clear();
+
+            for (EmailTreeItem<?> emailTreeItem : changedFolders) {
+                emailTreeItem.publishSnapshot();
+            }
+            changedFolders.clear();
+        }
+    }
+}
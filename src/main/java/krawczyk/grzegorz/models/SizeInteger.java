@@ -16,6 +16,14 @@ public class SizeInteger implements Comparable<SizeInteger> {
         this.size = size;
     }
 
+    /**
+     * Method returns size of a message in bytes.
+     * @return int - size of a message.
+     */
+    public int getSize() {
+        return size;
+    }
+
     @Override
     public String toString() {
         if (size <= 0) {
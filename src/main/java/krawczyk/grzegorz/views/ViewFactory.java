@@ -86,8 +86,15 @@ public class ViewFactory {
         System.out.println("Showing main window.");
 
         BaseController controller = new MainWindowController(emailManager, this, "MainWindow.fxml");
-        initializeStage(controller);
+        Stage stage = initializeStage(controller);
         mainViewInitialized = true;
+
+        // When main window is minimized, folders are not checked for new messages (only folders in IDLE mode are informed by server).
+        if (stage != null) {
+            stage.iconifiedProperty().addListener((observable, wasIconified, isIconified) -> {
+                emailManager.setUpdatesPaused(isIconified);
+            });
+        }
     }
 
     /**
@@ -169,8 +176,9 @@ public class ViewFactory {
      * Then method creates Scene with loaded Parent, sets Scene and displays Stage (window).
      * At the end method adds Stage to activeStages list (list of opened windows of the application).
      * @param controller - object of a class extending BaseController.
+     * @return Stage - displayed window, or null if fxml file couldn't be loaded.
      */
-    private void initializeStage(BaseController controller) {
+    private Stage initializeStage(BaseController controller) {
         FXMLLoader fxmlLoader = new FXMLLoader(getClass().getResource("/fxml_files/" + controller.getFxmlName()));
         fxmlLoader.setController(controller);
 
@@ -178,7 +186,7 @@ public class ViewFactory {
         try {
             parent = fxmlLoader.load();
         } catch (IOException e) {
-            return;
+            return null;
         }
 
         Scene scene = new Scene(parent);
@@ -188,6 +196,7 @@ public class ViewFactory {
 
         // Stage (window) is added to list of active stages (open windows)
         activeStages.add(stage);
+        return stage;
     }
 
     public ColorTheme getColorTheme() {